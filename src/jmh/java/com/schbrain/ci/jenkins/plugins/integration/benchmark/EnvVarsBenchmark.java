@@ -0,0 +1,79 @@
+package com.schbrain.ci.jenkins.plugins.integration.benchmark;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.env.BuildEnvContributor;
+import com.schbrain.ci.jenkins.plugins.integration.builder.env.EnvVarsStore;
+import hudson.EnvVars;
+import hudson.model.Run;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The env vars journal of a build, written before every command and read whenever jenkins computes the environment of the run.
+ * The environment is measured through {@link BuildEnvContributor#buildEnvironment(Iterable, EnvVars)}, the part of the contributor
+ * which does not need a {@link Run}
+ *
+ * @author liaozan
+ * @since 2022/4/30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvVarsBenchmark {
+
+    @Param({"100", "500"})
+    private int envSize;
+
+    private Path dir;
+
+    private File journal;
+
+    private EnvVarsStore store;
+
+    private Map<String, String> envVars;
+
+    private long counter;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("integration-benchmark");
+        journal = dir.resolve("envVars").toFile();
+        envVars = Fixtures.envVars(envSize);
+        store = new EnvVarsStore(journal);
+        store.save(envVars);
+        // a journal like the one of a finished build
+        store.compact();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public EnvVars buildEnvironment() throws IOException {
+        EnvVars envs = new EnvVars();
+        BuildEnvContributor.buildEnvironment(Collections.singletonList(journal), envs);
+        return envs;
+    }
+
+    /**
+     * every command saves the variables, usually only a few changed since the previous one
+     */
+    @Benchmark
+    public EnvVarsStore saveChangedVariables() throws IOException {
+        envVars.put("BUILD_STAGE", Long.toString(counter++));
+        store.save(envVars);
+        return store;
+    }
+
+}
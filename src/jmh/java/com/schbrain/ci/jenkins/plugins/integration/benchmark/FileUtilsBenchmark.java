@@ -0,0 +1,103 @@
+package com.schbrain.ci.jenkins.plugins.integration.benchmark;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.FileUtils;
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.WorkspaceFileIndex;
+import hudson.FilePath;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants.DOCKERFILE_NAME;
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.GitConstants.GIT_PROPERTIES_FILE;
+
+/**
+ * The workspace index and property files of the workspace, the workspace is a local {@link FilePath} so no remoting is measured
+ *
+ * @author liaozan
+ * @since 2022/4/30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileUtilsBenchmark {
+
+    /**
+     * levels of nested modules, three modules per level
+     */
+    @Param({"3", "5"})
+    private int depth;
+
+    @Param({"500"})
+    private int envSize;
+
+    private Path root;
+
+    private FilePath workspace;
+
+    private FilePath propertiesFile;
+
+    private File outputFile;
+
+    private Map<String, String> envVars;
+
+    private WorkspaceFileIndex index;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        root = Fixtures.workspace(depth, 3, 20);
+        workspace = new FilePath(root.toFile());
+        Path properties = root.resolve("env.properties");
+        Files.write(properties, Fixtures.properties(envSize).getBytes(StandardCharsets.UTF_8));
+        propertiesFile = new FilePath(properties.toFile());
+        outputFile = root.resolve("envVars").toFile();
+        envVars = Fixtures.envVars(envSize);
+        index = WorkspaceFileIndex.build(workspace);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Fixtures.delete(root);
+    }
+
+    /**
+     * one walk for all well known files, the listings of unchanged dirs are reused from the previous build
+     */
+    @Benchmark
+    public WorkspaceFileIndex buildIndex() throws IOException, InterruptedException {
+        return WorkspaceFileIndex.build(workspace);
+    }
+
+    @Benchmark
+    public FilePath lookupIndexedFile() {
+        return index.lookup(DOCKERFILE_NAME);
+    }
+
+    /**
+     * parsed while indexing, no file is read
+     */
+    @Benchmark
+    public Map<String, String> readIndexedProperties() {
+        return index.readProperties(GIT_PROPERTIES_FILE);
+    }
+
+    @Benchmark
+    public Map<String, String> filePathToMap() throws IOException, InterruptedException {
+        return FileUtils.filePathToMap(propertiesFile);
+    }
+
+    @Benchmark
+    public File writeUtf8Map() {
+        FileUtils.writeUtf8Map(envVars, outputFile, "=");
+        return outputFile;
+    }
+
+}
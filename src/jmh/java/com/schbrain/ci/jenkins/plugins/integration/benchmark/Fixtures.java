@@ -0,0 +1,149 @@
+package com.schbrain.ci.jenkins.plugins.integration.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixtures shaped like the ones of real builds: env vars of a parameterized job, k8s manifests and maven workspaces
+ *
+ * @author liaozan
+ * @since 2022/4/30
+ */
+final class Fixtures {
+
+    private static final String[] MODULE_NAMES = {"api", "service", "dao", "common", "web", "client"};
+
+    private Fixtures() {
+    }
+
+    /**
+     * Variables like the ones a build carries: jenkins variables, git and build info, job parameters
+     */
+    static Map<String, String> envVars(int size) {
+        Map<String, String> envVars = new LinkedHashMap<>();
+        envVars.put("BUILD_NUMBER", "1024");
+        envVars.put("JOB_NAME", "backend/order-service");
+        envVars.put("GIT_BRANCH", "origin/feature/checkout-timeout");
+        envVars.put("APP_NAME", "order-service");
+        envVars.put("IMAGE", "registry.example.com/backend/order-service:1024-3f2a9c1");
+        envVars.put("PORT", "8080");
+        envVars.put("NAMESPACE", "backend");
+        envVars.put("REPLICAS", "3");
+        for (int i = envVars.size(); i < size; i++) {
+            envVars.put("PARAM_" + i, "value-" + i + "-" + Integer.toHexString(i * 31));
+        }
+        return envVars;
+    }
+
+    /**
+     * A deployment template with the given number of containers, every one referencing the variables
+     */
+    static String manifest(int containers) {
+        StringBuilder manifest = new StringBuilder()
+                .append("apiVersion: apps/v1\n")
+                .append("kind: Deployment\n")
+                .append("metadata:\n")
+                .append("  name: ${APP_NAME}\n")
+                .append("  namespace: ${NAMESPACE}\n")
+                .append("  labels:\n")
+                .append("    app: ${APP_NAME}\n")
+                .append("    build: \"${BUILD_NUMBER}\"\n")
+                .append("spec:\n")
+                .append("  replicas: ${REPLICAS}\n")
+                .append("  template:\n")
+                .append("    spec:\n")
+                .append("      containers:\n");
+        for (int i = 0; i < containers; i++) {
+            manifest.append("        - name: ${APP_NAME}-").append(i).append('\n')
+                    .append("          image: ${IMAGE}\n")
+                    .append("          ports:\n")
+                    .append("            - containerPort: ${PORT}\n")
+                    .append("          env:\n")
+                    .append("            - name: PARAM\n")
+                    .append("              value: \"$PARAM_").append(100 + i).append("\"\n")
+                    .append("            - name: JAVA_OPTS\n")
+                    .append("              value: \"-Xms512m -Xmx512m -XX:+UseG1GC\"\n")
+                    .append("          resources:\n")
+                    .append("            limits: {cpu: \"1\", memory: 1Gi}\n");
+        }
+        return manifest.toString();
+    }
+
+    /**
+     * A maven workspace of nested modules, every module has sources, a target dir and a pom
+     *
+     * @param depth  levels of nested modules
+     * @param fanOut modules per level
+     * @param files  source files per module
+     */
+    static Path workspace(int depth, int fanOut, int files) throws IOException {
+        Path root = Files.createTempDirectory("integration-benchmark");
+        write(root.resolve("pom.xml"), "<project/>");
+        createModules(root, depth, fanOut, files);
+        // the files are looked up in the deepest module, same as the build info of a service module
+        Path deepest = root;
+        for (int level = 0; level < depth; level++) {
+            deepest = deepest.resolve(MODULE_NAMES[0]);
+        }
+        write(deepest.resolve("target").resolve("build-info.properties"), properties(64));
+        write(deepest.resolve("Dockerfile"), "FROM openjdk:8-jre\nCOPY target/*.jar /app.jar\n");
+        write(deepest.resolve("deploy.yaml"), manifest(1));
+        write(root.resolve("git.properties"), properties(16));
+        return root;
+    }
+
+    static String properties(int size) {
+        StringBuilder properties = new StringBuilder("# generated\n");
+        for (Map.Entry<String, String> entry : envVars(size).entrySet()) {
+            properties.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        return properties.toString();
+    }
+
+    static void delete(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+    private static void createModules(Path parent, int depth, int fanOut, int files) throws IOException {
+        if (depth == 0) {
+            return;
+        }
+        for (int i = 0; i < fanOut; i++) {
+            Path module = parent.resolve(MODULE_NAMES[i % MODULE_NAMES.length]);
+            write(module.resolve("pom.xml"), "<project/>");
+            Path sources = module.resolve("src/main/java/com/example/order");
+            for (int file = 0; file < files; file++) {
+                write(sources.resolve("Class" + file + ".java"), "class Class" + file + " {}\n");
+            }
+            write(module.resolve("target/classes/com/example/order/Class0.class"), "");
+            createModules(module, depth - 1, fanOut, files);
+        }
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
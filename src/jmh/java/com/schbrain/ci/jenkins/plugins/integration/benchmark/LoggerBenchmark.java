@@ -0,0 +1,41 @@
+package com.schbrain.ci.jenkins.plugins.integration.benchmark;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.Logger;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Logger#println(String, Object...)}, every command and stage of a build is logged through it
+ *
+ * @author liaozan
+ * @since 2022/4/30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoggerBenchmark {
+
+    private Logger logger;
+
+    @Setup
+    public void setup() {
+        logger = Logger.of(new PrintStream(NullOutputStream.NULL_OUTPUT_STREAM));
+    }
+
+    @Benchmark
+    public void printlnFormatted() {
+        logger.println("image %s is queued for removal", "registry.example.com/backend/order-service:1024-3f2a9c1");
+    }
+
+    @Benchmark
+    public void printlnPlain() {
+        logger.println("maven build is not checked", false);
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.schbrain.ci.jenkins.plugins.integration.benchmark;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.TemplateUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TemplateUtils#resolve(String, Map)}, called for every command and every deploy template
+ *
+ * @author liaozan
+ * @since 2022/4/30
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TemplateUtilsBenchmark {
+
+    @Param({"100", "500"})
+    private int envSize;
+
+    @Param({"1", "50"})
+    private int containers;
+
+    private Map<String, String> envVars;
+
+    private String manifest;
+
+    @Setup
+    public void setup() {
+        envVars = Fixtures.envVars(envSize);
+        manifest = Fixtures.manifest(containers);
+    }
+
+    @Benchmark
+    public String resolveCommand() {
+        return TemplateUtils.resolve("docker build -t ${IMAGE} --build-arg APP_NAME=$APP_NAME -f Dockerfile .", envVars);
+    }
+
+    @Benchmark
+    public String resolveCommandWithoutPlaceholder() {
+        return TemplateUtils.resolve("mvn clean package -U -B -Dmaven.test.skip=true", envVars);
+    }
+
+    @Benchmark
+    public String resolveManifest() {
+        return TemplateUtils.resolve(manifest, envVars);
+    }
+
+}
@@ -0,0 +1,130 @@
+package com.schbrain.ci.jenkins.plugins.integration.action;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptArchive;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.util.VirtualFile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+/**
+ * View of a {@link BuildScriptArchive}, entries are listed and streamed from the zip on demand, nothing is extracted.
+ * <p>
+ * Entries are kept by their path and resolved on every access, so the view still works after the archive was closed
+ * and opened again
+ *
+ * @author liaozan
+ * @since 2022/5/3
+ */
+class ArchiveVirtualFile extends VirtualFile {
+
+    private final BuildScriptArchive archive;
+
+    /**
+     * relative to the root, empty for the root itself
+     */
+    private final String entry;
+
+    ArchiveVirtualFile(BuildScriptArchive archive) {
+        this(archive, "");
+    }
+
+    private ArchiveVirtualFile(BuildScriptArchive archive, String entry) {
+        this.archive = archive;
+        this.entry = entry;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return entry.isEmpty() ? archive.getCommit() : entry.substring(entry.lastIndexOf('/') + 1);
+    }
+
+    @NonNull
+    @Override
+    public URI toURI() {
+        try {
+            return path().toUri();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public VirtualFile getParent() {
+        if (entry.isEmpty()) {
+            return this;
+        }
+        int separator = entry.lastIndexOf('/');
+        return new ArchiveVirtualFile(archive, separator < 0 ? "" : entry.substring(0, separator));
+    }
+
+    @Override
+    public boolean isDirectory() throws IOException {
+        return Files.isDirectory(path());
+    }
+
+    @Override
+    public boolean isFile() throws IOException {
+        return Files.isRegularFile(path());
+    }
+
+    @Override
+    public boolean exists() throws IOException {
+        return Files.exists(path());
+    }
+
+    @NonNull
+    @Override
+    public VirtualFile[] list() throws IOException {
+        if (!isDirectory()) {
+            return new VirtualFile[0];
+        }
+        try (Stream<Path> children = Files.list(path())) {
+            return children.map(child -> child.getFileName().toString().replace("/", ""))
+                    .sorted()
+                    .map(this::child)
+                    .toArray(VirtualFile[]::new);
+        }
+    }
+
+    @NonNull
+    @Override
+    public VirtualFile child(@NonNull String name) {
+        return new ArchiveVirtualFile(archive, entry.isEmpty() ? name : entry + "/" + name);
+    }
+
+    @Override
+    public long length() throws IOException {
+        return isFile() ? Files.size(path()) : 0;
+    }
+
+    @Override
+    public long lastModified() throws IOException {
+        return exists() ? Files.getLastModifiedTime(path()).toMillis() : 0;
+    }
+
+    @Override
+    public boolean canRead() throws IOException {
+        return exists();
+    }
+
+    @Override
+    public InputStream open() throws IOException {
+        if (!isFile()) {
+            throw new FileNotFoundException(entry);
+        }
+        return Files.newInputStream(path());
+    }
+
+    private Path path() throws IOException {
+        return entry.isEmpty() ? archive.getRoot() : archive.getEntry(entry);
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.schbrain.ci.jenkins.plugins.integration.action;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptStore;
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptStore.ManifestEntry;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.util.VirtualFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * View of an archived build script dir, the tree is made of the paths of its manifest and the files are read from {@link BuildScriptStore}
+ *
+ * @author liaozan
+ * @since 2022/5/2
+ */
+class ManifestVirtualFile extends VirtualFile {
+
+    private final File buildScriptDir;
+
+    private final Map<String, ManifestEntry> entries;
+
+    /**
+     * path relative to the build script dir, empty for the dir itself
+     */
+    private final String path;
+
+    ManifestVirtualFile(File buildScriptDir, Map<String, ManifestEntry> entries) {
+        this(buildScriptDir, entries, "");
+    }
+
+    private ManifestVirtualFile(File buildScriptDir, Map<String, ManifestEntry> entries, String path) {
+        this.buildScriptDir = buildScriptDir;
+        this.entries = entries;
+        this.path = path;
+    }
+
+    @NonNull
+    @Override
+    public String getName() {
+        return path.isEmpty() ? buildScriptDir.getName() : path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    @NonNull
+    @Override
+    public URI toURI() {
+        ManifestEntry entry = entries.get(path);
+        return entry == null ? new File(buildScriptDir, path).toURI() : BuildScriptStore.getBlob(entry.getChecksum()).toURI();
+    }
+
+    @Override
+    public VirtualFile getParent() {
+        int index = path.lastIndexOf('/');
+        return path.isEmpty() ? this : new ManifestVirtualFile(buildScriptDir, entries, index < 0 ? "" : path.substring(0, index));
+    }
+
+    @Override
+    public boolean isDirectory() {
+        if (path.isEmpty()) {
+            return true;
+        }
+        String prefix = path + "/";
+        for (String entryPath : entries.keySet()) {
+            if (entryPath.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isFile() {
+        return entries.containsKey(path);
+    }
+
+    @Override
+    public boolean exists() {
+        return isFile() || isDirectory();
+    }
+
+    @NonNull
+    @Override
+    public VirtualFile[] list() {
+        String prefix = path.isEmpty() ? "" : path + "/";
+        TreeSet<String> names = new TreeSet<>();
+        for (String entryPath : entries.keySet()) {
+            if (entryPath.startsWith(prefix)) {
+                String rest = entryPath.substring(prefix.length());
+                int index = rest.indexOf('/');
+                names.add(index < 0 ? rest : rest.substring(0, index));
+            }
+        }
+        VirtualFile[] children = new VirtualFile[names.size()];
+        int i = 0;
+        for (String name : names) {
+            children[i++] = new ManifestVirtualFile(buildScriptDir, entries, prefix + name);
+        }
+        return children;
+    }
+
+    @NonNull
+    @Override
+    public VirtualFile child(@NonNull String name) {
+        return new ManifestVirtualFile(buildScriptDir, entries, path.isEmpty() ? name : path + "/" + name);
+    }
+
+    @Override
+    public long length() {
+        ManifestEntry entry = entries.get(path);
+        return entry == null ? 0 : entry.getSize();
+    }
+
+    @Override
+    public long lastModified() {
+        ManifestEntry entry = entries.get(path);
+        return entry == null ? 0 : BuildScriptStore.getBlob(entry.getChecksum()).lastModified();
+    }
+
+    @Override
+    public boolean canRead() {
+        return exists();
+    }
+
+    @Override
+    public InputStream open() throws FileNotFoundException {
+        ManifestEntry entry = entries.get(path);
+        if (entry == null) {
+            throw new FileNotFoundException(path);
+        }
+        return new FileInputStream(BuildScriptStore.getBlob(entry.getChecksum()));
+    }
+
+}
@@ -0,0 +1,176 @@
+package com.schbrain.ci.jenkins.plugins.integration.action;
+
+import hudson.Util;
+import hudson.model.Api;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timeline of the stages and commands of a build, also available as json at {@code timeline/api/json}
+ *
+ * @author liaozan
+ * @since 2022/4/15
+ */
+@ExportedBean
+public class StageTimelineAction implements RunAction2 {
+
+    private final List<TimelineEntry> entries;
+
+    /**
+     * a run of a pipeline may have one action per execution of the step, null for the first one
+     */
+    private final String executionSuffix;
+
+    private transient Run<?, ?> run;
+
+    public StageTimelineAction(List<TimelineEntry> entries, String executionSuffix) {
+        this.entries = entries;
+        this.executionSuffix = executionSuffix;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "clock.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "构建耗时" + Util.fixNull(executionSuffix);
+    }
+
+    @Override
+    public String getUrlName() {
+        return "timeline" + Util.fixNull(executionSuffix);
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    @Exported
+    public List<TimelineEntry> getEntries() {
+        return entries == null ? Collections.emptyList() : entries;
+    }
+
+    @Exported
+    public long getTotalMillis() {
+        long total = 0;
+        for (TimelineEntry entry : getEntries()) {
+            total = Math.max(total, entry.getStartMillis() + entry.getDurationMillis());
+        }
+        return total;
+    }
+
+    /**
+     * offset of the entry in the waterfall, in percent
+     */
+    @SuppressWarnings("unused")
+    public double left(TimelineEntry entry) {
+        long total = getTotalMillis();
+        return total == 0 ? 0 : entry.getStartMillis() * 100.0 / total;
+    }
+
+    /**
+     * width of the entry in the waterfall, in percent
+     */
+    @SuppressWarnings("unused")
+    public double width(TimelineEntry entry) {
+        long total = getTotalMillis();
+        return total == 0 ? 100 : Math.max(entry.getDurationMillis() * 100.0 / total, 0.5);
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static class TimelineEntry {
+
+        private final String type;
+
+        private final String stage;
+
+        private final String name;
+
+        private final long startMillis;
+
+        private final long durationMillis;
+
+        private final long spawnMillis;
+
+        private final boolean success;
+
+        public TimelineEntry(String type, String stage, String name, long startMillis, long durationMillis, long spawnMillis, boolean success) {
+            this.type = type;
+            this.stage = stage;
+            this.name = name;
+            this.startMillis = startMillis;
+            this.durationMillis = durationMillis;
+            this.spawnMillis = spawnMillis;
+            this.success = success;
+        }
+
+        @Exported
+        public String getType() {
+            return type;
+        }
+
+        @Exported
+        public String getStage() {
+            return stage;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        @Exported
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        /**
+         * time spent before the process was running, -1 for stages
+         */
+        @Exported
+        public long getSpawnMillis() {
+            return spawnMillis;
+        }
+
+        /**
+         * time the process was running, -1 for stages
+         */
+        @Exported
+        public long getRunMillis() {
+            return spawnMillis < 0 ? -1 : durationMillis - spawnMillis;
+        }
+
+        @Exported
+        public boolean isSuccess() {
+            return success;
+        }
+
+    }
+
+}
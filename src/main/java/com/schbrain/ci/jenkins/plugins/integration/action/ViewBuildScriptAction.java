@@ -1,14 +1,21 @@
 package com.schbrain.ci.jenkins.plugins.integration.action;
 
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptArchive;
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptStore;
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptStore.ManifestEntry;
+import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.FilePath;
-import hudson.model.AbstractBuild;
 import hudson.model.DirectoryBrowserSupport;
 import hudson.model.Run;
 import jenkins.model.RunAction2;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
+import javax.servlet.http.HttpServletResponse;
+
 import java.io.File;
+import java.io.IOException;
 
 /**
  * @author liaozan
@@ -31,12 +38,19 @@ public class ViewBuildScriptAction implements RunAction2 {
 
     @Override
     public String getDisplayName() {
-        return "构建脚本";
+        return "构建脚本" + getExecutionSuffix();
     }
 
     @Override
     public String getUrlName() {
-        return "build-scripts";
+        return "build-scripts" + getExecutionSuffix();
+    }
+
+    /**
+     * a run of a pipeline may have one action per execution of the step
+     */
+    private String getExecutionSuffix() {
+        return FileManager.getExecutionSuffix(new File(buildScriptDir));
     }
 
     @Override
@@ -53,11 +67,48 @@ public class ViewBuildScriptAction implements RunAction2 {
         return run;
     }
 
-    @SuppressWarnings({"unused", "rawtypes"})
-    public DirectoryBrowserSupport doList(StaplerRequest request, StaplerResponse response) {
-        AbstractBuild build = (AbstractBuild) request.findAncestor(AbstractBuild.class).getObject();
-        FilePath filePath = new FilePath(new File(buildScriptDir));
-        return new DirectoryBrowserSupport(build, filePath, "构建脚本", "folder.png", true);
+    /**
+     * @return whether the build-script archive the build rendered from is kept with it, it is once the step is finished
+     */
+    public boolean isSourceAvailable() {
+        try {
+            return getSource() != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @CheckForNull
+    private ManifestEntry getSource() throws IOException {
+        ManifestEntry source = BuildScriptStore.readSource(new File(buildScriptDir));
+        return source != null && BuildScriptStore.getBlob(source.getChecksum()).isFile() ? source : null;
+    }
+
+    /**
+     * Browse the dir while the step is running, the manifest once it is archived to {@link BuildScriptStore}
+     */
+    @SuppressWarnings("unused")
+    public DirectoryBrowserSupport doList(StaplerRequest request, StaplerResponse response) throws IOException {
+        File dir = new File(buildScriptDir);
+        if (BuildScriptStore.isArchived(dir)) {
+            return new DirectoryBrowserSupport(run, new ManifestVirtualFile(dir, BuildScriptStore.readManifest(dir)), "构建脚本", "folder.png", true);
+        }
+        FilePath filePath = new FilePath(dir);
+        return new DirectoryBrowserSupport(run, filePath, "构建脚本", "folder.png", true);
+    }
+
+    /**
+     * Browse the build-script archive the build rendered from, entries are streamed from the zip kept with the build
+     */
+    @SuppressWarnings("unused")
+    public DirectoryBrowserSupport doSource(StaplerRequest request, StaplerResponse response) throws IOException {
+        ManifestEntry source = getSource();
+        if (source == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return null;
+        }
+        BuildScriptArchive archive = BuildScriptArchive.openStored(BuildScriptStore.getBlob(source.getChecksum()), source.getPath());
+        return new DirectoryBrowserSupport(run, new ArchiveVirtualFile(archive), "脚本源文件", "folder.png", true);
     }
 
-}
\ No newline at end of file
+}
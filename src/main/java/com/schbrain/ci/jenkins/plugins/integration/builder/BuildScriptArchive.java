@@ -0,0 +1,203 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The build-script archive of a commit, read in place through a zip {@link FileSystem}.
+ * <p>
+ * Nothing is extracted, every entry is streamed from the archive when it is read, and only the files rendered by a build
+ * are written out as artifacts of the build. Archives are opened once and shared by all builds, which keep the paths
+ * of the entries they resolved, so an archive is never closed while in use: it stays open until {@link BuildScriptCache}
+ * evicts its zip, which only happens to zips no build used within the minimum retention. Every build keeps the zip it
+ * rendered from in {@link BuildScriptStore}, so the source of a build can be browsed as long as the build exists.
+ *
+ * @author liaozan
+ * @since 2022/5/3
+ */
+public class BuildScriptArchive {
+
+    private static final String ZIP_SUFFIX = ".zip";
+
+    /**
+     * bounded by the zips retained by {@link BuildScriptCache}, an archive is only closed along with its zip
+     */
+    private static final Map<String, BuildScriptArchive> OPEN_ARCHIVES = new HashMap<>();
+
+    private static final int MAX_STORED_ARCHIVES = 16;
+
+    /**
+     * archives kept with finished builds, only read by the requests browsing them, see {@link #openStored(File, String)}
+     */
+    private static final Map<String, BuildScriptArchive> STORED_ARCHIVES = new LinkedHashMap<String, BuildScriptArchive>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BuildScriptArchive> eldest) {
+            if (size() <= MAX_STORED_ARCHIVES) {
+                return false;
+            }
+            eldest.getValue().close();
+            return true;
+        }
+
+    };
+
+    private final File file;
+
+    private final String commit;
+
+    private FileSystem fileSystem;
+
+    private volatile List<String> entries;
+
+    private volatile String checksum;
+
+    private BuildScriptArchive(File file, String commit) {
+        this.file = file;
+        this.commit = commit;
+    }
+
+    public static BuildScriptArchive open(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        synchronized (OPEN_ARCHIVES) {
+            BuildScriptArchive archive = OPEN_ARCHIVES.get(key);
+            if (archive == null) {
+                String name = file.getName();
+                archive = new BuildScriptArchive(file, name.endsWith(ZIP_SUFFIX) ? name.substring(0, name.length() - ZIP_SUFFIX.length()) : name);
+                archive.getFileSystem();
+                OPEN_ARCHIVES.put(key, archive);
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Open an archive kept with a finished build by {@link BuildScriptStore}.
+     * <p>
+     * Nothing keeps paths of these archives across requests, so the eldest ones are closed, a closed archive is opened
+     * again on its next read
+     */
+    public static BuildScriptArchive openStored(File file, String commit) throws IOException {
+        String key = file.getAbsolutePath();
+        synchronized (STORED_ARCHIVES) {
+            BuildScriptArchive archive = STORED_ARCHIVES.get(key);
+            if (archive == null) {
+                archive = new BuildScriptArchive(file, commit);
+                archive.getFileSystem();
+                STORED_ARCHIVES.put(key, archive);
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Close the archive if it is open, called before the archive is removed from the cache
+     */
+    public static void close(File file) {
+        synchronized (OPEN_ARCHIVES) {
+            BuildScriptArchive archive = OPEN_ARCHIVES.remove(file.getAbsolutePath());
+            if (archive != null) {
+                archive.close();
+            }
+        }
+    }
+
+    /**
+     * @return the commit the archive was made of
+     */
+    public String getCommit() {
+        return commit;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the sha256 of the zip, computed once, the zip is never changed once cached
+     */
+    public String getChecksum() throws IOException {
+        String checksum = this.checksum;
+        if (checksum == null) {
+            try (InputStream input = Files.newInputStream(file.toPath())) {
+                checksum = DigestUtils.sha256Hex(input);
+            }
+            this.checksum = checksum;
+        }
+        return checksum;
+    }
+
+    public Path getRoot() throws IOException {
+        return getFileSystem().getPath("/");
+    }
+
+    /**
+     * @return the entry of the given path relative to the root, may not exist
+     */
+    public Path getEntry(String path) throws IOException {
+        return getRoot().resolve(path);
+    }
+
+    /**
+     * @return the closest entry named fileName, same as {@code FileUtils#getTheClosestFile}, null if there is none
+     */
+    @CheckForNull
+    public Path findClosest(String fileName) throws IOException {
+        String matched = null;
+        for (String entry : getEntries()) {
+            String name = entry.substring(entry.lastIndexOf('/') + 1);
+            if (name.equals(fileName) && (matched == null || entry.length() < matched.length())) {
+                matched = entry;
+            }
+        }
+        return matched == null ? null : getEntry(matched);
+    }
+
+    /**
+     * @return paths of all files of the archive, relative to the root
+     */
+    public List<String> getEntries() throws IOException {
+        List<String> entries = this.entries;
+        if (entries == null) {
+            Path root = getRoot();
+            try (Stream<Path> files = Files.walk(root)) {
+                entries = Collections.unmodifiableList(files.filter(Files::isRegularFile)
+                        .map(path -> root.relativize(path).toString())
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+            this.entries = entries;
+        }
+        return entries;
+    }
+
+    private synchronized FileSystem getFileSystem() throws IOException {
+        if (fileSystem == null || !fileSystem.isOpen()) {
+            fileSystem = FileSystems.newFileSystem(file.toPath(), (ClassLoader) null);
+        }
+        return fileSystem;
+    }
+
+    private synchronized void close() {
+        if (fileSystem == null) {
+            return;
+        }
+        try {
+            fileSystem.close();
+        } catch (IOException e) {
+            // nothing to release
+        }
+    }
+
+}
@@ -0,0 +1,231 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.Launcher;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipFile;
+
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.BuildConstants.*;
+
+/**
+ * Cross-build cache of the build-script archive, keyed by the commit {@code SCRIPT_GIT_BRANCH} resolves to.
+ * <p>
+ * The branch is resolved at most once per {@link #RESOLVE_TTL}, each commit is downloaded once and kept as the zip itself,
+ * builds read the entries they render straight from it through {@link BuildScriptArchive}.
+ *
+ * @author liaozan
+ * @since 2022/4/6
+ */
+public class BuildScriptCache {
+
+    private static final long RESOLVE_TTL = SystemProperties.getLong(BuildScriptCache.class.getName() + ".resolveTtl", TimeUnit.MINUTES.toMillis(5));
+
+    private static final int RETAINED_COMMITS = SystemProperties.getInteger(BuildScriptCache.class.getName() + ".retainedCommits", 5);
+
+    /**
+     * builds render from the cached archive directly, an archive used within this period is never evicted
+     */
+    private static final long MIN_RETENTION = SystemProperties.getLong(BuildScriptCache.class.getName() + ".minRetention", TimeUnit.HOURS.toMillis(6));
+
+    private static final String ZIP_SUFFIX = ".zip";
+
+    private static final String DOWNLOADING_SUFFIX = ".zip.tmp";
+
+    /**
+     * keyed by commit, concurrent builds of the same commit download it once
+     */
+    private static final Map<String, Object> DOWNLOAD_LOCKS = new ConcurrentHashMap<>();
+
+    private static volatile String resolvedCommit;
+
+    private static volatile long resolvedAt;
+
+    /**
+     * Make the build-script archive of the current {@code SCRIPT_GIT_BRANCH} available to the build,
+     * the templates are rendered on the controller straight from the cached archive, nothing is copied to the agent
+     */
+    public static void prepare(BuilderContext context) throws IOException, InterruptedException {
+        context.setBuildScriptSource(BuildScriptArchive.open(getOrDownload(context)));
+    }
+
+    /**
+     * Only the lookup in the cache dir, the move of a downloaded archive into it and the eviction are serialized globally.
+     * The branch is resolved and archives are downloaded without that lock, concurrent builds only wait for each other
+     * when they download the same commit, which is then downloaded once
+     */
+    private static File getOrDownload(BuilderContext context) throws IOException, InterruptedException {
+        File cacheDir = FileManager.getBuildScriptCacheDir();
+        String commit = resolveCommit(context);
+        if (commit == null) {
+            return download(context, cacheDir, null);
+        }
+        File archive = lookup(cacheDir, commit);
+        if (archive == null) {
+            synchronized (DOWNLOAD_LOCKS.computeIfAbsent(commit, key -> new Object())) {
+                // downloaded by a concurrent build while waiting
+                archive = lookup(cacheDir, commit);
+                if (archive == null) {
+                    return download(context, cacheDir, commit);
+                }
+            }
+        }
+        context.log("build script cache hit: %s", commit);
+        return archive;
+    }
+
+    /**
+     * @return the cached archive of the commit, touched so it is not evicted while the build renders from it
+     */
+    @CheckForNull
+    private static synchronized File lookup(File cacheDir, String commit) {
+        File archive = new File(cacheDir, commit + ZIP_SUFFIX);
+        if (!archive.isFile()) {
+            return null;
+        }
+        archive.setLastModified(System.currentTimeMillis());
+        return archive;
+    }
+
+    private static File download(BuilderContext context, File cacheDir, @CheckForNull String commit) throws IOException, InterruptedException {
+        File downloaded = downloadArchive(context, cacheDir);
+        try {
+            // git archive records the archived commit as the zip comment
+            String archivedCommit = readArchivedCommit(downloaded);
+            if (archivedCommit == null) {
+                archivedCommit = commit != null ? commit : UUID.randomUUID().toString();
+            }
+            return store(cacheDir, downloaded, archivedCommit);
+        } finally {
+            Files.deleteIfExists(downloaded.toPath());
+        }
+    }
+
+    private static synchronized File store(File cacheDir, File downloaded, String archivedCommit) throws IOException {
+        File archive = new File(cacheDir, archivedCommit + ZIP_SUFFIX);
+        if (archive.isFile()) {
+            archive.setLastModified(System.currentTimeMillis());
+        } else {
+            Files.move(downloaded.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        rememberCommit(archivedCommit);
+        evictStaleCommits(cacheDir, archive);
+        return archive;
+    }
+
+    @CheckForNull
+    private static String resolveCommit(BuilderContext context) throws InterruptedException {
+        String commit = resolvedCommit;
+        if (commit != null && System.currentTimeMillis() - resolvedAt < RESOLVE_TTL) {
+            return commit;
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            Launcher launcher = context.getLauncher();
+            int exitCode = launcher.launch()
+                    .cmds("git", "ls-remote", SCRIPT_GIT_REPO, "refs/heads/" + SCRIPT_GIT_BRANCH)
+                    .pwd(context.getWorkspace())
+                    .stdout(output)
+                    .quiet(true)
+                    .join();
+            if (exitCode != 0) {
+                context.getLogger().println("failed to resolve %s of %s, exit code: %s", SCRIPT_GIT_BRANCH, SCRIPT_GIT_REPO, exitCode);
+                return null;
+            }
+        } catch (IOException e) {
+            context.getLogger().println("failed to resolve %s of %s: %s", SCRIPT_GIT_BRANCH, SCRIPT_GIT_REPO, e.getMessage());
+            return null;
+        }
+        commit = StringUtils.substringBefore(output.toString(StandardCharsets.UTF_8.name()).trim(), "\t");
+        if (StringUtils.isBlank(commit)) {
+            return null;
+        }
+        rememberCommit(commit);
+        return commit;
+    }
+
+    private static void rememberCommit(String commit) {
+        resolvedCommit = commit;
+        resolvedAt = System.currentTimeMillis();
+    }
+
+    private static File downloadArchive(BuilderContext context, File cacheDir) throws IOException, InterruptedException {
+        String archiveCommand = String.format("git archive -o %s --format=zip --remote=%s %s", SCRIPT_NAME, SCRIPT_GIT_REPO, SCRIPT_GIT_BRANCH);
+        context.execute(archiveCommand);
+        FilePath remoteArchive = context.getWorkspace().child(SCRIPT_NAME);
+        File localArchive = new File(cacheDir, UUID.randomUUID() + DOWNLOADING_SUFFIX);
+        try {
+            remoteArchive.copyTo(new FilePath(localArchive));
+        } finally {
+            remoteArchive.delete();
+        }
+        return localArchive;
+    }
+
+    @CheckForNull
+    private static String readArchivedCommit(File archive) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archive)) {
+            String comment = zipFile.getComment();
+            return StringUtils.isBlank(comment) ? null : comment.trim();
+        }
+    }
+
+    private static void evictStaleCommits(File cacheDir, File currentArchive) throws IOException {
+        // extracted commit dirs of earlier versions are not used anymore
+        File[] legacyDirs = cacheDir.listFiles(File::isDirectory);
+        if (legacyDirs != null) {
+            for (File legacyDir : legacyDirs) {
+                deleteRecursively(legacyDir.toPath());
+            }
+        }
+        File[] archives = cacheDir.listFiles(file -> file.isFile() && file.getName().endsWith(ZIP_SUFFIX) && !file.equals(currentArchive));
+        if (archives == null || archives.length < RETAINED_COMMITS) {
+            return;
+        }
+        Arrays.sort(archives, Comparator.comparingLong(File::lastModified).reversed());
+        long minLastModified = System.currentTimeMillis() - MIN_RETENTION;
+        for (int i = RETAINED_COMMITS - 1; i < archives.length; i++) {
+            // a running build may still render from it
+            if (archives[i].lastModified() < minLastModified) {
+                BuildScriptArchive.close(archives[i]);
+                Files.deleteIfExists(archives[i].toPath());
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (Files.notExists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+}
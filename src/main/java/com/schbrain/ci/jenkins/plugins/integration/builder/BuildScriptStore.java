@@ -0,0 +1,484 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Content addressed store of the files of the build script dirs, shared by all builds.
+ * <p>
+ * Once the step is finished its build script dir is replaced by a manifest next to it, one line of checksum, size and path
+ * per file, the files themselves are stored once per content. Every manifest holds a reference to each of its blobs,
+ * a marker named by the id of the manifest in the {@code <checksum>.refs} dir next to the blob, which holds the path
+ * of the manifest, so archiving or releasing a manifest only touches the markers of its own files. A blob is removed
+ * with its last marker when the builds are deleted.
+ * <p>
+ * Builds removed without {@link RunListener#onDeleted}, by deleting the whole job or from the disk, are caught by
+ * {@link SweepWork}, which drops the markers whose manifest is gone. Markers follow their builds when a job is moved
+ * or renamed. The build-script archive the build rendered from is kept the same way, as a blob named
+ * on a line of its own, so the source of a build outlives the eviction of its commit from {@link BuildScriptCache}.
+ *
+ * @author liaozan
+ * @since 2022/5/2
+ */
+public class BuildScriptStore {
+
+    private static final Logger LOGGER = Logger.getLogger(BuildScriptStore.class.getName());
+
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    private static final String REFS_SUFFIX = ".refs";
+
+    /**
+     * first line of a manifest, followed by the id its references are named by
+     */
+    private static final String REFERENCE_HEADER = "# ";
+
+    /**
+     * line of the build-script archive, followed by its checksum, size and commit
+     */
+    private static final String SOURCE_HEADER = "#source ";
+
+    private static final Pattern CHECKSUM = Pattern.compile("[0-9a-f]{64}");
+
+    private static final long SWEEP_PERIOD = SystemProperties.getLong(BuildScriptStore.class.getName() + ".sweepPeriod", TimeUnit.DAYS.toMillis(1));
+
+    /**
+     * a marker whose manifest is gone is only dropped once it is this old, a moved job has its markers rewritten by then
+     */
+    private static final long MIN_ORPHAN_AGE = SystemProperties.getLong(BuildScriptStore.class.getName() + ".minOrphanAge", TimeUnit.DAYS.toMillis(1));
+
+    /**
+     * Replace the build script dir by its manifest, the dir is deleted afterwards
+     *
+     * @param source the build-script archive the build rendered from, kept with the build, null if it was not prepared
+     */
+    public static void archive(File buildScriptDir, @CheckForNull BuildScriptArchive source) throws IOException {
+        archive(buildScriptDir, source, Jenkins.get().getRootDir(), FileManager.getBlobStoreDir());
+    }
+
+    static synchronized void archive(File buildScriptDir, @CheckForNull BuildScriptArchive source, File rootDir, File storeDir) throws IOException {
+        if (!buildScriptDir.isDirectory()) {
+            return;
+        }
+        Path root = buildScriptDir.toPath();
+        Map<String, ManifestEntry> entries = new TreeMap<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String checksum;
+                try (InputStream input = Files.newInputStream(file)) {
+                    checksum = DigestUtils.sha256Hex(input);
+                }
+                store(storeDir, file, checksum);
+                String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+                entries.put(path, new ManifestEntry(path, checksum, attrs.size()));
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+
+        ManifestEntry sourceEntry = null;
+        if (source != null) {
+            sourceEntry = new ManifestEntry(source.getCommit(), source.getChecksum(), source.getFile().length());
+            store(storeDir, source.getFile().toPath(), sourceEntry.checksum);
+        }
+
+        String referenceId = UUID.randomUUID().toString();
+        File manifestFile = getManifestFile(buildScriptDir);
+        writeReferences(getChecksums(entries.values(), sourceEntry), referenceId, manifestFile, rootDir, storeDir);
+        // references first, a crash in between leaks blobs until the next sweep but never loses one
+        writeManifest(manifestFile, referenceId, entries.values(), sourceEntry);
+        deleteRecursively(root);
+    }
+
+    /**
+     * @return the entries of the manifest by their path, empty if the build script dir is not archived
+     */
+    public static Map<String, ManifestEntry> readManifest(File buildScriptDir) throws IOException {
+        File manifestFile = getManifestFile(buildScriptDir);
+        if (!manifestFile.isFile()) {
+            return Collections.emptyMap();
+        }
+        Map<String, ManifestEntry> entries = new TreeMap<>();
+        for (String line : Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            // the path comes last, it may contain spaces
+            String[] parts = line.split(" ", 3);
+            if (parts.length == 3) {
+                entries.put(parts[2], new ManifestEntry(parts[2], parts[0], Long.parseLong(parts[1])));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the stored file of the given path of the archived build script dir, null if there is none
+     */
+    @CheckForNull
+    public static File lookup(File buildScriptDir, String path) throws IOException {
+        ManifestEntry entry = readManifest(buildScriptDir).get(path);
+        return entry == null ? null : getBlob(entry.checksum);
+    }
+
+    /**
+     * @return the build-script archive kept with the build, its path is the commit, null if there is none
+     */
+    @CheckForNull
+    public static ManifestEntry readSource(File buildScriptDir) throws IOException {
+        File manifestFile = getManifestFile(buildScriptDir);
+        if (!manifestFile.isFile()) {
+            return null;
+        }
+        for (String line : Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            if (line.startsWith(SOURCE_HEADER)) {
+                String[] parts = line.substring(SOURCE_HEADER.length()).split(" ", 3);
+                if (parts.length == 3) {
+                    return new ManifestEntry(parts[2], parts[0], Long.parseLong(parts[1]));
+                }
+            }
+        }
+        return null;
+    }
+
+    public static boolean isArchived(File buildScriptDir) {
+        return getManifestFile(buildScriptDir).isFile();
+    }
+
+    public static File getBlob(String checksum) {
+        return getBlob(FileManager.getBlobStoreDir(), checksum);
+    }
+
+    static File getBlob(File storeDir, String checksum) {
+        return new File(new File(storeDir, checksum.substring(0, 2)), checksum);
+    }
+
+    /**
+     * Drop the references of the manifests of the run, blobs without references are removed
+     */
+    public static void release(Run<?, ?> run) throws IOException {
+        release(FileManager.getCacheDir(run), FileManager.getBlobStoreDir());
+    }
+
+    static synchronized void release(File cacheDir, File storeDir) throws IOException {
+        File[] manifestFiles = cacheDir.listFiles((dir, name) -> name.endsWith(MANIFEST_SUFFIX));
+        if (manifestFiles == null) {
+            return;
+        }
+        for (File manifestFile : manifestFiles) {
+            String referenceId = readReferenceId(manifestFile);
+            File buildScriptDir = getBuildScriptDir(manifestFile);
+            for (String checksum : getChecksums(readManifest(buildScriptDir).values(), readSource(buildScriptDir))) {
+                Path refsDir = getRefsDir(storeDir, checksum);
+                if (referenceId != null) {
+                    Files.deleteIfExists(refsDir.resolve(referenceId));
+                }
+                String[] references = refsDir.toFile().list();
+                if (references == null || references.length == 0) {
+                    Files.deleteIfExists(refsDir);
+                    Files.deleteIfExists(getBlob(storeDir, checksum).toPath());
+                }
+            }
+            // last, a release interrupted in between is simply done again
+            Files.delete(manifestFile.toPath());
+        }
+    }
+
+    /**
+     * Point the markers of the builds of a moved job to their new location
+     */
+    public static void relocate(File buildsDir) throws IOException {
+        relocate(buildsDir, Jenkins.get().getRootDir(), FileManager.getBlobStoreDir());
+    }
+
+    static synchronized void relocate(File buildsDir, File rootDir, File storeDir) throws IOException {
+        File[] buildDirs = buildsDir.listFiles(File::isDirectory);
+        if (buildDirs == null) {
+            return;
+        }
+        for (File buildDir : buildDirs) {
+            File[] manifestFiles = buildDir.listFiles((dir, name) -> name.endsWith(MANIFEST_SUFFIX));
+            if (manifestFiles == null) {
+                continue;
+            }
+            for (File manifestFile : manifestFiles) {
+                String referenceId = readReferenceId(manifestFile);
+                if (referenceId == null) {
+                    continue;
+                }
+                File buildScriptDir = getBuildScriptDir(manifestFile);
+                writeReferences(getChecksums(readManifest(buildScriptDir).values(), readSource(buildScriptDir)), referenceId, manifestFile, rootDir, storeDir);
+            }
+        }
+    }
+
+    /**
+     * Drop the markers whose manifest is gone or no longer holds them, and the blobs left without a marker
+     */
+    static synchronized void sweep(File rootDir, File storeDir, long minOrphanAge) throws IOException {
+        File[] shards = storeDir.listFiles(File::isDirectory);
+        if (shards == null) {
+            return;
+        }
+        long maxLastModified = System.currentTimeMillis() - minOrphanAge;
+        for (File shard : shards) {
+            File[] files = shard.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isDirectory() && file.getName().endsWith(REFS_SUFFIX)) {
+                    File[] markers = file.listFiles();
+                    for (File marker : markers == null ? new File[0] : markers) {
+                        if (marker.lastModified() <= maxLastModified && !isReferenced(marker, rootDir)) {
+                            Files.deleteIfExists(marker.toPath());
+                        }
+                    }
+                    String[] references = file.list();
+                    if (references != null && references.length == 0) {
+                        String checksum = file.getName().substring(0, file.getName().length() - REFS_SUFFIX.length());
+                        Files.deleteIfExists(file.toPath());
+                        Files.deleteIfExists(getBlob(storeDir, checksum).toPath());
+                    }
+                } else if (file.isFile() && CHECKSUM.matcher(file.getName()).matches() && !new File(shard, file.getName() + REFS_SUFFIX).isDirectory()) {
+                    // stored by an archive interrupted before its references were written
+                    Files.deleteIfExists(file.toPath());
+                }
+            }
+        }
+    }
+
+    private static boolean isReferenced(File marker, File rootDir) throws IOException {
+        String manifestPath = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim();
+        if (manifestPath.isEmpty()) {
+            return false;
+        }
+        File manifestFile = new File(manifestPath);
+        if (!manifestFile.isAbsolute()) {
+            manifestFile = new File(rootDir, manifestPath);
+        }
+        return manifestFile.isFile() && marker.getName().equals(readReferenceId(manifestFile));
+    }
+
+    /**
+     * The markers hold the path of the manifest relative to the root dir, so they survive a move of the root dir
+     */
+    private static void writeReferences(Set<String> checksums, String referenceId, File manifestFile, File rootDir, File storeDir) throws IOException {
+        Path root = rootDir.getAbsoluteFile().toPath();
+        Path manifest = manifestFile.getAbsoluteFile().toPath();
+        String manifestPath = manifest.startsWith(root) ? root.relativize(manifest).toString().replace(File.separatorChar, '/') : manifest.toString();
+        byte[] content = manifestPath.getBytes(StandardCharsets.UTF_8);
+        for (String checksum : checksums) {
+            Path refsDir = getRefsDir(storeDir, checksum);
+            Files.createDirectories(refsDir);
+            Files.write(refsDir.resolve(referenceId), content);
+        }
+    }
+
+    private static File getBuildScriptDir(File manifestFile) {
+        String dirName = manifestFile.getName().substring(0, manifestFile.getName().length() - MANIFEST_SUFFIX.length());
+        return new File(manifestFile.getParentFile(), dirName);
+    }
+
+    private static File getManifestFile(File buildScriptDir) {
+        return new File(buildScriptDir.getParentFile(), buildScriptDir.getName() + MANIFEST_SUFFIX);
+    }
+
+    @CheckForNull
+    private static String readReferenceId(File manifestFile) throws IOException {
+        if (!manifestFile.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            return line != null && line.startsWith(REFERENCE_HEADER) ? line.substring(REFERENCE_HEADER.length()).trim() : null;
+        }
+    }
+
+    private static Path getRefsDir(File storeDir, String checksum) {
+        return new File(getBlob(storeDir, checksum).getParentFile(), checksum + REFS_SUFFIX).toPath();
+    }
+
+    /**
+     * a manifest holds a single reference to a blob, however many of its files share the content
+     */
+    private static Set<String> getChecksums(Collection<ManifestEntry> entries, @CheckForNull ManifestEntry source) {
+        Set<String> checksums = new TreeSet<>();
+        for (ManifestEntry entry : entries) {
+            checksums.add(entry.checksum);
+        }
+        if (source != null) {
+            checksums.add(source.checksum);
+        }
+        return checksums;
+    }
+
+    /**
+     * The blob shares the inode of the file when possible, files of the build script dir and cached archives are never written in place
+     */
+    private static void store(File storeDir, Path file, String checksum) throws IOException {
+        Path blob = getBlob(storeDir, checksum).toPath();
+        if (Files.exists(blob)) {
+            return;
+        }
+        Files.createDirectories(blob.getParent());
+        try {
+            Files.createLink(blob, file);
+        } catch (FileAlreadyExistsException e) {
+            // same content
+        } catch (IOException | UnsupportedOperationException e) {
+            Path tempFile = Files.createTempFile(blob.getParent(), checksum, ".tmp");
+            Files.copy(file, tempFile, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile, blob, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static void writeManifest(File manifestFile, String referenceId, Collection<ManifestEntry> entries, @CheckForNull ManifestEntry source) throws IOException {
+        File tempFile = new File(manifestFile.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(REFERENCE_HEADER + referenceId);
+            writer.newLine();
+            if (source != null) {
+                writer.write(SOURCE_HEADER + source.checksum + " " + source.size + " " + source.path);
+                writer.newLine();
+            }
+            for (ManifestEntry entry : entries) {
+                writer.write(entry.checksum + " " + entry.size + " " + entry.path);
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+    public static class ManifestEntry {
+
+        private final String path;
+
+        private final String checksum;
+
+        private final long size;
+
+        private ManifestEntry(String path, String checksum, long size) {
+            this.path = path;
+            this.checksum = checksum;
+            this.size = size;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+    }
+
+    /**
+     * Drops the references of a build before it is deleted
+     */
+    @Extension
+    @SuppressWarnings("unused")
+    public static class ReleaseOnDelete extends RunListener<Run<?, ?>> {
+
+        @Override
+        public void onDeleted(@NonNull Run<?, ?> run) {
+            try {
+                release(run);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "failed to release the build scripts of " + run, e);
+            }
+        }
+
+    }
+
+    /**
+     * Keeps the markers pointing to the builds of moved or renamed jobs
+     */
+    @Extension
+    @SuppressWarnings("unused")
+    public static class RelocateOnMove extends ItemListener {
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            if (!(item instanceof Job)) {
+                return;
+            }
+            try {
+                relocate(((Job<?, ?>) item).getBuildDir());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "failed to relocate the build scripts of " + newFullName, e);
+            }
+        }
+
+    }
+
+    /**
+     * Drops the references of builds removed without {@link ReleaseOnDelete}
+     */
+    @Extension
+    @SuppressWarnings("unused")
+    public static class SweepWork extends AsyncPeriodicWork {
+
+        public SweepWork() {
+            super("Integration build script sweep");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return SWEEP_PERIOD;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException {
+            sweep(Jenkins.get().getRootDir(), FileManager.getBlobStoreDir(), MIN_ORPHAN_AGE);
+        }
+
+    }
+
+}
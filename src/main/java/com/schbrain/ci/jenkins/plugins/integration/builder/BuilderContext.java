@@ -1,16 +1,30 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder;
 
 import com.schbrain.ci.jenkins.plugins.integration.builder.env.BuildEnvContributor;
+import com.schbrain.ci.jenkins.plugins.integration.builder.env.EnvVarsStore;
+import com.schbrain.ci.jenkins.plugins.integration.builder.stage.StageTimeline;
 import com.schbrain.ci.jenkins.plugins.integration.builder.util.Logger;
 import com.schbrain.ci.jenkins.plugins.integration.builder.util.TemplateUtils;
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.WorkspaceFileIndex;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.model.AbstractBuild;
+import hudson.Proc;
 import hudson.model.BuildListener;
-import hudson.tasks.Shell;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.Run;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.output.TeeOutputStream;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -18,14 +32,30 @@ import java.util.Objects;
  */
 public class BuilderContext {
 
-    private final AbstractBuild<?, ?> build;
+    /**
+     * stage name of the context not created by {@link #forStage(String, BuildListener)}
+     */
+    public static final String MAIN_STAGE = "main";
+
+    /**
+     * run commands in one long living shell per context instead of a new process per command
+     */
+    private static final boolean PERSISTENT_SHELL = SystemProperties.getBoolean(BuilderContext.class.getName() + ".persistentShell", true);
+
+    private final Run<?, ?> build;
     private final Launcher launcher;
     private final FilePath workspace;
     private final BuildListener listener;
     private final Logger logger;
+    private final EnvVars environment;
     private final EnvVars envVars;
+    private final File buildScriptDir;
+    private final FilePath stagingDir;
+    private final String stageName;
+
+    private final SharedState state;
 
-    private boolean imageHasBeenBuilt;
+    private ShellSession session;
 
     private BuilderContext(Builder builder) {
         this.build = builder.build;
@@ -33,26 +63,232 @@ public class BuilderContext {
         this.workspace = builder.workspace;
         this.listener = builder.listener;
         this.logger = builder.logger;
+        this.environment = builder.environment;
         this.envVars = builder.envVars;
-        this.imageHasBeenBuilt = false;
+        this.buildScriptDir = builder.buildScriptDir;
+        this.stagingDir = builder.stagingDir;
+        this.stageName = MAIN_STAGE;
+        this.state = new SharedState();
+    }
+
+    private BuilderContext(BuilderContext parent, String stageName, BuildListener listener, EnvVars envVars) {
+        this.build = parent.build;
+        this.launcher = parent.launcher;
+        this.workspace = parent.workspace;
+        this.listener = listener;
+        this.logger = Logger.of(listener.getLogger());
+        this.environment = parent.environment;
+        this.envVars = envVars;
+        this.buildScriptDir = parent.buildScriptDir;
+        this.stagingDir = parent.stagingDir;
+        this.stageName = stageName;
+        this.state = parent.state;
+    }
+
+    /**
+     * Create a context of the same build which logs to the given listener, all other state is shared
+     */
+    public BuilderContext forStage(String stageName, BuildListener listener) {
+        return new BuilderContext(this, stageName, listener, envVars);
+    }
+
+    /**
+     * Create a context of the same stage with its own env vars, changes to them are not visible to other contexts
+     */
+    public BuilderContext withEnvVars(EnvVars envVars) {
+        return new BuilderContext(this, stageName, listener, envVars);
     }
 
     public void execute(String command) throws InterruptedException, IOException {
-        String resolvedCommand = TemplateUtils.resolve(command, envVars);
-        if (!Objects.equals(resolvedCommand, command)) {
-            log("before resolve: %s",command);
-            command = resolvedCommand;
+        execute(Collections.singletonList(command));
+    }
+
+    /**
+     * Run the commands as one batch, they must not depend on the output of each other.
+     * Stops at the first failed command, same as running them one by one
+     */
+    public void execute(List<String> commands) throws InterruptedException, IOException {
+        List<String> resolvedCommands = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            String resolvedCommand = TemplateUtils.resolve(command, envVars);
+            if (!Objects.equals(resolvedCommand, command)) {
+                log("before resolve: %s",command);
+                command = resolvedCommand;
+            }
+            log("%s", command);
+            resolvedCommands.add(command);
         }
-        log("%s", command);
         BuildEnvContributor.saveEnvVarsToDisk(this);
-        Shell shell = new ExceptionCatchShell(command);
-        shell.perform(getBuild(), getLauncher(), getListener());
+        if (PERSISTENT_SHELL) {
+            executeInSession(resolvedCommands);
+        } else {
+            for (String command : resolvedCommands) {
+                executeInShell(command);
+            }
+        }
+    }
+
+    private void executeInSession(List<String> commands) throws InterruptedException, IOException {
+        long startedAt = System.nanoTime();
+        ShellSession.Result result = null;
+        long spawnNanos = 0;
+        try {
+            ShellSession session = getSession();
+            spawnNanos = System.nanoTime() - startedAt;
+            result = session.run(commands, getCommandEnvironment());
+        } finally {
+            // the commands may have changed the workspace, refresh the index on next lookup
+            state.workspaceIndex = null;
+            if (result == null) {
+                // the state of the session is unknown
+                closeSession();
+                state.timeline.record(StageTimeline.COMMAND, stageName, commands.get(0), startedAt, System.nanoTime(), spawnNanos, false);
+            }
+        }
+        long commandStartedAt = startedAt;
+        for (int i = 0; i < commands.size(); i++) {
+            int exitCode = result.getExitCode(i);
+            if (exitCode < 0) {
+                break;
+            }
+            long finishedAt = result.getFinishedAt(i);
+            state.timeline.record(StageTimeline.COMMAND, stageName, commands.get(i), commandStartedAt, finishedAt, i == 0 ? spawnNanos : 0, exitCode == 0);
+            commandStartedAt = finishedAt;
+            if (exitCode != 0) {
+                throw failure(commands.get(i));
+            }
+        }
+    }
+
+    /**
+     * One process per command, launched directly so it works for freestyle builds and pipelines alike
+     */
+    private void executeInShell(String command) throws InterruptedException, IOException {
+        boolean success = false;
+        long startedAt = System.nanoTime();
+        long processStartedAt = -1;
+        try {
+            Proc process = launcher.launch()
+                    .cmds("sh", "-xe", "-c", command)
+                    .envs(getCommandEnvironment())
+                    .pwd(workspace)
+                    .stdout(listener)
+                    .start();
+            processStartedAt = System.nanoTime();
+            if (process.join() != 0) {
+                throw failure(command);
+            }
+            success = true;
+        } finally {
+            // the command may have changed the workspace, refresh the index on next lookup
+            state.workspaceIndex = null;
+            long spawnNanos = processStartedAt < 0 ? System.nanoTime() - startedAt : processStartedAt - startedAt;
+            state.timeline.record(StageTimeline.COMMAND, stageName, command, startedAt, System.nanoTime(), spawnNanos, success);
+        }
+    }
+
+    private static RuntimeException failure(String command) {
+        return new RuntimeException(String.format("Failed to execute \"%s\", Please review the log to correct the build", command));
+    }
+
+    /**
+     * The environment of the step overridden by the variables of the build, same as a shell step gets
+     */
+    private EnvVars getCommandEnvironment() {
+        EnvVars commandEnvironment = new EnvVars(environment);
+        commandEnvironment.overrideAll(envVars);
+        return commandEnvironment;
+    }
+
+    private synchronized ShellSession getSession() throws IOException, InterruptedException {
+        if (session == null || !session.isAlive()) {
+            session = ShellSession.start(this);
+            state.sessions.add(session);
+        }
+        return session;
+    }
+
+    /**
+     * Stop the shell session of this context, the next command starts a new one
+     */
+    public synchronized void closeSession() throws IOException {
+        if (session == null) {
+            return;
+        }
+        state.sessions.remove(session);
+        session.close();
+        session = null;
+    }
+
+    /**
+     * Stop the shell sessions of all contexts of the build
+     */
+    public void closeAllSessions() throws IOException {
+        List<ShellSession> sessions;
+        synchronized (state.sessions) {
+            sessions = new ArrayList<>(state.sessions);
+            state.sessions.clear();
+        }
+        for (ShellSession shellSession : sessions) {
+            shellSession.close();
+        }
+    }
+
+    /**
+     * Run the command quietly, without a shell, and return what it printed to stdout
+     *
+     * @return the trimmed stdout, or null if the command failed
+     */
+    @CheckForNull
+    public String executeForOutput(String... command) throws InterruptedException, IOException {
+        return executeForOutput(false, command);
+    }
+
+    /**
+     * Same as {@link #executeForOutput(String...)}, the stdout is also written to the console as it is printed when logOutput is set
+     */
+    @CheckForNull
+    public String executeForOutput(boolean logOutput, String... command) throws InterruptedException, IOException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        boolean success = false;
+        long startedAt = System.nanoTime();
+        try {
+            int exitCode = launcher.launch()
+                    .cmds(command)
+                    .envs(getCommandEnvironment())
+                    .pwd(workspace)
+                    .stdout(logOutput ? new TeeOutputStream(listener.getLogger(), stdout) : stdout)
+                    .stderr(listener.getLogger())
+                    .quiet(true)
+                    .join();
+            success = exitCode == 0;
+        } finally {
+            state.timeline.record(StageTimeline.COMMAND, stageName, String.join(" ", command), startedAt, System.nanoTime(), -1, success);
+        }
+        return success ? stdout.toString(StandardCharsets.UTF_8.name()).trim() : null;
     }
 
-    public AbstractBuild<?, ?> getBuild() {
+    public Run<?, ?> getBuild() {
         return build;
     }
 
+    /**
+     * @return the node the workspace lives on, null if it went offline
+     */
+    @CheckForNull
+    public Node getNode() {
+        Computer computer = workspace.toComputer();
+        return computer == null ? null : computer.getNode();
+    }
+
+    /**
+     * @return name of the node the workspace lives on, empty for the built-in node
+     */
+    public String getNodeName() {
+        Node node = getNode();
+        return node == null ? "" : node.getNodeName();
+    }
+
     public Launcher getLauncher() {
         return launcher;
     }
@@ -73,12 +309,72 @@ public class BuilderContext {
         return envVars;
     }
 
+    /**
+     * @return the environment the step was started with, not changed by the build
+     */
+    public EnvVars getEnvironment() {
+        return environment;
+    }
+
+    /**
+     * @return the build script dir of this execution of the step on the controller, a pipeline may execute it more than once per run.
+     * Only the final artifacts of the build are kept there: env vars, rendered Dockerfile and manifests
+     */
+    public File getBuildScriptDir() {
+        return buildScriptDir;
+    }
+
+    /**
+     * @return the dir on the agent the rendered files passed to the tools of the agent are written to, the manifest and the Dockerfile, deleted once the step is finished
+     */
+    public FilePath getStagingDir() {
+        return stagingDir;
+    }
+
+    /**
+     * @return the build-script archive of the commit on the controller, null if it is not prepared yet
+     */
+    @CheckForNull
+    public BuildScriptArchive getBuildScriptSource() {
+        return state.buildScriptSource;
+    }
+
+    public void setBuildScriptSource(BuildScriptArchive buildScriptSource) {
+        state.buildScriptSource = buildScriptSource;
+    }
+
+    public EnvVarsStore getEnvVarsStore() throws IOException {
+        synchronized (state) {
+            if (state.envVarsStore == null) {
+                state.envVarsStore = new EnvVarsStore(FileManager.getEnvVarsFile(buildScriptDir));
+            }
+            return state.envVarsStore;
+        }
+    }
+
+    public WorkspaceFileIndex getWorkspaceIndex() throws IOException, InterruptedException {
+        WorkspaceFileIndex workspaceIndex = state.workspaceIndex;
+        if (workspaceIndex == null) {
+            workspaceIndex = WorkspaceFileIndex.build(workspace);
+            state.workspaceIndex = workspaceIndex;
+        }
+        return workspaceIndex;
+    }
+
+    public String getStageName() {
+        return stageName;
+    }
+
+    public StageTimeline getTimeline() {
+        return state.timeline;
+    }
+
     public boolean isImageHasBeenBuilt() {
-        return imageHasBeenBuilt;
+        return state.imageHasBeenBuilt;
     }
 
     public void setImageHasBeenBuilt() {
-        this.imageHasBeenBuilt = true;
+        state.imageHasBeenBuilt = true;
     }
 
     public void log(String template) {
@@ -89,16 +385,33 @@ public class BuilderContext {
         logger.println(template, true, arguments);
     }
 
+    /**
+     * State of the build shared by the contexts of all stages
+     */
+    private static class SharedState {
+
+        private final StageTimeline timeline = new StageTimeline();
+        private final List<ShellSession> sessions = Collections.synchronizedList(new ArrayList<>());
+        private EnvVarsStore envVarsStore;
+        private volatile WorkspaceFileIndex workspaceIndex;
+        private volatile boolean imageHasBeenBuilt;
+        private volatile BuildScriptArchive buildScriptSource;
+
+    }
+
     public static class Builder {
 
-        private AbstractBuild<?, ?> build;
+        private Run<?, ?> build;
         private Launcher launcher;
         private FilePath workspace;
         private BuildListener listener;
         private Logger logger;
+        private EnvVars environment;
         private EnvVars envVars;
+        private File buildScriptDir;
+        private FilePath stagingDir;
 
-        public Builder build(AbstractBuild<?, ?> build) {
+        public Builder build(Run<?, ?> build) {
             this.build = build;
             return this;
         }
@@ -123,11 +436,26 @@ public class BuilderContext {
             return this;
         }
 
+        public Builder environment(EnvVars environment) {
+            this.environment = environment;
+            return this;
+        }
+
         public Builder envVars(EnvVars envVars) {
             this.envVars = envVars;
             return this;
         }
 
+        public Builder buildScriptDir(File buildScriptDir) {
+            this.buildScriptDir = buildScriptDir;
+            return this;
+        }
+
+        public Builder stagingDir(FilePath stagingDir) {
+            this.stagingDir = stagingDir;
+            return this;
+        }
+
         public BuilderContext build() {
             return new BuilderContext(this);
         }
@@ -1,9 +1,14 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder;
 
-import hudson.model.AbstractBuild;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.slaves.WorkspaceList;
+import jenkins.model.Jenkins;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author liaozan
@@ -12,26 +17,128 @@ import java.io.IOException;
 @SuppressWarnings("ResultOfMethodCallIgnored")
 public class FileManager {
 
-    public static File getCacheDir(AbstractBuild<?, ?> build) {
-        return build.getRootDir();
+    private static final String BUILD_SCRIPT_DIR_NAME = "build-script";
+
+    private static final String ENV_VARS_FILE_NAME = "envVars";
+
+    public static File getCacheDir(Run<?, ?> run) {
+        return run.getRootDir();
     }
 
-    public static File getEnvVarsFile(AbstractBuild<?, ?> build) throws IOException {
-        File buildScriptDir = getBuildScriptDir(build);
-        File envVarsFile = new File(buildScriptDir, "envVars");
+    /**
+     * shared across builds, see {@link BuildScriptCache}
+     */
+    public static File getBuildScriptCacheDir() {
+        File cacheDir = new File(Jenkins.get().getRootDir(), "integration-cache/build-script");
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return cacheDir;
+    }
+
+    /**
+     * shared across builds, see {@code TemplateUtils#renderFile}
+     */
+    public static File getRenderedTemplateCacheDir() {
+        File cacheDir = new File(Jenkins.get().getRootDir(), "integration-cache/rendered-templates");
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return cacheDir;
+    }
+
+    /**
+     * shared across builds, see {@link BuildScriptStore}
+     */
+    public static File getBlobStoreDir() {
+        File cacheDir = new File(Jenkins.get().getRootDir(), "integration-cache/blobs");
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return cacheDir;
+    }
+
+    public static File getImageFingerprintIndexFile() {
+        File cacheDir = new File(Jenkins.get().getRootDir(), "integration-cache");
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        return new File(cacheDir, "image-fingerprints.properties");
+    }
+
+    public static File getEnvVarsFile(File buildScriptDir) throws IOException {
+        File envVarsFile = new File(buildScriptDir, ENV_VARS_FILE_NAME);
         if (!envVarsFile.exists()) {
             envVarsFile.createNewFile();
         }
         return envVarsFile;
     }
 
-    public static File getBuildScriptDir(AbstractBuild<?, ?> build) {
-        File cacheDir = getCacheDir(build);
-        File buildScriptDir = new File(cacheDir, "build-script");
-        if (!buildScriptDir.exists()) {
-            buildScriptDir.mkdirs();
+    /**
+     * env vars files of all executions of the run, in the order of execution, never creates anything.
+     * The file of a finished execution is served from {@link BuildScriptStore}
+     */
+    public static List<File> lookupEnvVarsFiles(Run<?, ?> run) throws IOException {
+        List<File> envVarsFiles = new ArrayList<>();
+        File cacheDir = getCacheDir(run);
+        for (int index = 1; ; index++) {
+            File buildScriptDir = new File(cacheDir, getBuildScriptDirName(index));
+            if (buildScriptDir.isDirectory()) {
+                envVarsFiles.add(new File(buildScriptDir, ENV_VARS_FILE_NAME));
+            } else if (BuildScriptStore.isArchived(buildScriptDir)) {
+                File envVarsFile = BuildScriptStore.lookup(buildScriptDir, ENV_VARS_FILE_NAME);
+                if (envVarsFile != null) {
+                    envVarsFiles.add(envVarsFile);
+                }
+            } else {
+                return envVarsFiles;
+            }
+        }
+    }
+
+    /**
+     * Allocate the build script dir of one execution, a run executes the step more than once
+     * when it is used in several stages or parallel branches of a pipeline
+     */
+    public static synchronized File allocateBuildScriptDir(Run<?, ?> run) {
+        File cacheDir = getCacheDir(run);
+        if (!cacheDir.exists()) {
+            cacheDir.mkdirs();
+        }
+        for (int index = 1; ; index++) {
+            File buildScriptDir = new File(cacheDir, getBuildScriptDirName(index));
+            if (BuildScriptStore.isArchived(buildScriptDir)) {
+                continue;
+            }
+            if (buildScriptDir.mkdir()) {
+                return buildScriptDir;
+            }
+            if (!buildScriptDir.isDirectory()) {
+                throw new IllegalStateException(String.format("can not create build script dir %s", buildScriptDir));
+            }
+        }
+    }
+
+    /**
+     * The staging dir on the agent of the given build script dir, next to the workspace and outside of the docker build context
+     */
+    public static FilePath getStagingDir(FilePath workspace, File buildScriptDir) {
+        FilePath tempDir = WorkspaceList.tempDir(workspace);
+        if (tempDir == null) {
+            return workspace.child(".integration").child(buildScriptDir.getName());
         }
-        return buildScriptDir;
+        return tempDir.child(buildScriptDir.getName());
+    }
+
+    /**
+     * @return empty for the first execution of a run, {@code -n} for the n-th one
+     */
+    public static String getExecutionSuffix(File buildScriptDir) {
+        return buildScriptDir.getName().substring(BUILD_SCRIPT_DIR_NAME.length());
+    }
+
+    private static String getBuildScriptDirName(int index) {
+        return index == 1 ? BUILD_SCRIPT_DIR_NAME : BUILD_SCRIPT_DIR_NAME + "-" + index;
     }
 
-}
\ No newline at end of file
+}
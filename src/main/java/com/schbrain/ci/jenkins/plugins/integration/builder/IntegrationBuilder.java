@@ -5,35 +5,45 @@ import com.schbrain.ci.jenkins.plugins.integration.builder.config.DeployToK8sCon
 import com.schbrain.ci.jenkins.plugins.integration.builder.config.DockerConfig;
 import com.schbrain.ci.jenkins.plugins.integration.builder.config.DockerConfig.PushConfig;
 import com.schbrain.ci.jenkins.plugins.integration.builder.config.MavenConfig;
-import com.schbrain.ci.jenkins.plugins.integration.builder.util.FileUtils;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.ImageCleanupWork;
+import com.schbrain.ci.jenkins.plugins.integration.builder.env.BuildEnvContributor;
+import com.schbrain.ci.jenkins.plugins.integration.builder.env.ConcurrentEnvVars;
+import com.schbrain.ci.jenkins.plugins.integration.builder.stage.StageScheduler;
 import com.schbrain.ci.jenkins.plugins.integration.builder.util.Logger;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
 import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
+import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
+import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest;
 import org.springframework.lang.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 
-import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.BuildConstants.*;
 import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.*;
-import static com.schbrain.ci.jenkins.plugins.integration.builder.util.FileUtils.lookupFile;
 
 /**
  * @author liaozan
  * @since 2022/1/14
  */
 @SuppressWarnings("unused")
-public class IntegrationBuilder extends Builder {
+public class IntegrationBuilder extends Builder implements SimpleBuildStep {
 
     private final MavenConfig mavenConfig;
     private final DockerConfig dockerConfig;
@@ -64,27 +74,65 @@ public class IntegrationBuilder extends Builder {
     }
 
     /**
-     * Builder start
+     * Builder start, freestyle builds reach here through the compatibility layer of {@link Builder},
+     * a pipeline may call it from several stages or parallel branches of one run
      */
     @Override
-    public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
-        File buildScriptDir = FileManager.getBuildScriptDir(build);
-        build.addAction(new ViewBuildScriptAction(buildScriptDir));
+    public void perform(@NonNull Run<?, ?> run, @NonNull FilePath workspace, @NonNull EnvVars env, @NonNull Launcher launcher, @NonNull TaskListener listener) throws IOException, InterruptedException {
+        File buildScriptDir = FileManager.allocateBuildScriptDir(run);
+        ViewBuildScriptAction buildScriptAction = new ViewBuildScriptAction(buildScriptDir);
+        run.addAction(buildScriptAction);
+        BuildListener buildListener = toBuildListener(listener);
         BuilderContext builderContext = new BuilderContext.Builder()
-                .build(build)
+                .build(run)
                 .launcher(launcher)
-                .listener(listener)
-                .logger(Logger.of(listener.getLogger()))
-                .workspace(checkWorkspaceValid(build.getWorkspace()))
-                .envVars(createEnvVars(build))
+                .listener(buildListener)
+                .logger(Logger.of(buildListener.getLogger()))
+                .workspace(checkWorkspaceValid(workspace))
+                .environment(env)
+                .envVars(createEnvVars(run))
+                .buildScriptDir(buildScriptDir)
+                .stagingDir(FileManager.getStagingDir(workspace, buildScriptDir))
                 .build();
         try {
             this.doPerformBuild(builderContext);
+        } catch (InterruptedException e) {
+            throw e;
         } catch (Exception e) {
             e.printStackTrace(listener.getLogger());
-            return false;
+            throw new AbortException(String.format("integration failed: %s", e.getMessage()));
+        } finally {
+            builderContext.closeAllSessions();
+            deleteStagingDir(builderContext);
+            archiveBuildScriptDir(builderContext);
+            run.addAction(builderContext.getTimeline().toAction(FileManager.getExecutionSuffix(buildScriptDir)));
+        }
+    }
+
+    private void deleteStagingDir(BuilderContext context) throws InterruptedException {
+        try {
+            context.getStagingDir().deleteRecursive();
+        } catch (IOException e) {
+            context.log("failed to delete staging dir %s: %s", context.getStagingDir().getRemote(), e.getMessage());
+        }
+    }
+
+    /**
+     * Keep only a manifest with the build, the files and the build-script archive go to the store shared by all builds
+     */
+    private void archiveBuildScriptDir(BuilderContext context) {
+        try {
+            BuildScriptStore.archive(context.getBuildScriptDir(), context.getBuildScriptSource());
+        } catch (IOException e) {
+            context.log("failed to archive build script dir %s: %s", context.getBuildScriptDir(), e.getMessage());
+        }
+    }
+
+    private BuildListener toBuildListener(TaskListener listener) {
+        if (listener instanceof BuildListener) {
+            return (BuildListener) listener;
         }
-        return true;
+        return new StreamBuildListener(listener.getLogger(), StandardCharsets.UTF_8);
     }
 
     @Override
@@ -93,34 +141,48 @@ public class IntegrationBuilder extends Builder {
     }
 
     protected void doPerformBuild(BuilderContext context) throws Exception {
+        Map<String, String> manifests = new ConcurrentHashMap<>();
+        ExecutorService executor = StageScheduler.newExecutor();
         try {
-            // maven build
-            performMavenBuild(context);
-            // read maven build-info
-            readMavenBuildInfo(context);
-            // download build-script
-            downloadBuildScript(context);
-            // docker build
-            performDockerBuild(context);
-            // docker push
-            performDockerPush(context);
-            // deploy
-            deployToRemote(context);
+            new StageScheduler(context, executor)
+                    // maven build
+                    .stage("maven", this::performMavenBuild)
+                    // read maven build-info
+                    .stage("build-info", this::readMavenBuildInfo, "maven")
+                    // download build-script, does not need maven
+                    .stage("build-script", this::downloadBuildScript)
+                    // docker build
+                    .stage("docker-build", this::performDockerBuild, "build-info", "build-script")
+                    // docker push
+                    .stage("docker-push", this::performDockerPush, "docker-build")
+                    // render deploy files while pushing
+                    .stage("deploy-render", stageContext -> manifests.putAll(renderDeployFiles(stageContext)), "docker-build")
+                    // deploy
+                    .stage("deploy", stageContext -> deployToRemote(stageContext, manifests), "docker-push", "deploy-render")
+                    .run();
         } finally {
+            StageScheduler.terminate(executor, context);
             if (context.isImageHasBeenBuilt()) {
                 // delete the built image if possible
                 deleteImageAfterBuild(context);
                 // prune image
                 pruneImageCache(context);
             }
+            String imageName = context.getEnvVars().get(DockerConstants.IMAGE);
+            if (imageName != null) {
+                ImageCleanupWork.release(imageName);
+            }
             // setup description
             setBuildDescription(context);
+            // compact env vars journal
+            BuildEnvContributor.compactEnvVars(context);
         }
     }
 
-    private EnvVars createEnvVars(AbstractBuild<?, ?> build) {
-        EnvVars envVars = new EnvVars();
-        ParametersAction parametersAction = build.getAction(ParametersAction.class);
+    private EnvVars createEnvVars(Run<?, ?> run) {
+        // shared by the stages running at the same time
+        EnvVars envVars = new ConcurrentEnvVars();
+        ParametersAction parametersAction = run.getAction(ParametersAction.class);
         if (parametersAction == null) {
             return envVars;
         }
@@ -135,27 +197,20 @@ public class IntegrationBuilder extends Builder {
     }
 
     private void downloadBuildScript(BuilderContext context) throws InterruptedException, IOException {
-        File buildScriptDir = FileManager.getBuildScriptDir(context.getBuild());
-        File buildScripts = new File(buildScriptDir, SCRIPT_NAME);
-        String archiveCommand = String.format("git archive -o %s --format=zip --remote=%s %s", SCRIPT_NAME, SCRIPT_GIT_REPO, SCRIPT_GIT_BRANCH);
-        context.execute(archiveCommand);
-        String moveCommand = String.format("mv %s %s", SCRIPT_NAME, buildScripts);
-        context.execute(moveCommand);
-        String unzipCommand = String.format("cd %s && unzip %s", buildScriptDir, SCRIPT_NAME);
-        context.execute(unzipCommand);
+        BuildScriptCache.prepare(context);
     }
 
     private void setBuildDescription(BuilderContext context) throws IOException, InterruptedException {
-        FilePath gitPropertiesFile = lookupFile(context, GitConstants.GIT_PROPERTIES_FILE);
-        if (gitPropertiesFile == null) {
+        Map<String, String> gitProperties = context.getWorkspaceIndex().readProperties(GitConstants.GIT_PROPERTIES_FILE);
+        if (gitProperties == null) {
+            context.getLogger().println("could not found matched file: %s", GitConstants.GIT_PROPERTIES_FILE);
             return;
         }
-        Map<String, String> gitProperties = FileUtils.filePathToMap(gitPropertiesFile);
         String author = gitProperties.get(GitConstants.GIT_COMMITTER);
         String branch = gitProperties.get(GitConstants.GIT_BRANCH);
-        AbstractBuild<?, ?> build = context.getBuild();
+        Run<?, ?> run = context.getBuild();
         String description = String.format("author: %s, branch: %s", author, branch);
-        build.setDescription(description);
+        run.setDescription(description);
     }
 
     /**
@@ -183,13 +238,13 @@ public class IntegrationBuilder extends Builder {
 
     private void readMavenBuildInfo(BuilderContext context) throws IOException, InterruptedException {
         EnvVars envVars = context.getEnvVars();
-        FilePath dockerBuildInfo = lookupFile(context, DockerConstants.BUILD_INFO_FILE_NAME);
+        Map<String, String> dockerBuildInfo = context.getWorkspaceIndex().readProperties(DockerConstants.BUILD_INFO_FILE_NAME);
         if (dockerBuildInfo == null) {
             context.log("%s file not exist, skip docker build", DockerConstants.BUILD_INFO_FILE_NAME);
             return;
         }
         // overwriting existing environment variables is not allowed
-        FileUtils.filePathToMap(dockerBuildInfo).forEach(envVars::putIfAbsent);
+        dockerBuildInfo.forEach(envVars::putIfAbsent);
     }
 
     private void performDockerBuild(BuilderContext context) throws Exception {
@@ -218,9 +273,9 @@ public class IntegrationBuilder extends Builder {
     }
 
     /**
-     * Delete the image produced in the build
+     * Delete the image produced in the build, done in the background by {@link ImageCleanupWork}
      */
-    private void deleteImageAfterBuild(BuilderContext context) throws InterruptedException, IOException {
+    private void deleteImageAfterBuild(BuilderContext context) {
         DockerConfig dockerConfig = getDockerConfig();
         if (dockerConfig == null) {
             context.log("docker build is not checked");
@@ -236,36 +291,51 @@ public class IntegrationBuilder extends Builder {
             return;
         }
 
-        String command = String.format("docker rmi -f %s", imageName);
-        context.execute(command);
+        ImageCleanupWork.enqueueRemoval(context.getNodeName(), imageName);
+        context.log("image %s is queued for removal", imageName);
     }
 
-    private void pruneImageCache(BuilderContext context) throws IOException, InterruptedException {
-        context.execute("docker image prune -f");
+    private void pruneImageCache(BuilderContext context) {
+        ImageCleanupWork.requestPrune(context.getNodeName());
+    }
+
+    private Map<String, String> renderDeployFiles(BuilderContext context) throws Exception {
+        DeployToK8sConfig k8sConfig = getDeployToK8sConfig();
+        if (k8sConfig == null) {
+            return Collections.emptyMap();
+        }
+
+        return k8sConfig.render(context);
     }
 
     /**
      * 部署镜像到远端
      */
-    private void deployToRemote(BuilderContext context) throws Exception {
+    private void deployToRemote(BuilderContext context, Map<String, String> manifests) throws Exception {
         DeployToK8sConfig k8sConfig = getDeployToK8sConfig();
         if (k8sConfig == null) {
             context.log("k8s deploy is not checked");
             return;
         }
 
-        k8sConfig.build(context);
+        k8sConfig.apply(context, manifests);
     }
 
     // can not move outside builder class
     @Extension
+    @Symbol("integration")
     @SuppressWarnings("unused")
-    public static class IntegrationDescriptor extends Descriptor<Builder> {
+    public static class IntegrationDescriptor extends BuildStepDescriptor<Builder> {
 
         public IntegrationDescriptor() {
             load();
         }
 
+        @Override
+        public boolean isApplicable(Class<? extends AbstractProject> jobType) {
+            return true;
+        }
+
         @Override
         public String getDisplayName() {
             return "发布集成";
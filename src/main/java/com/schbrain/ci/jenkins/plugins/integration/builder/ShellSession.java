@@ -0,0 +1,221 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * One long living {@code sh} on the agent, commands are streamed to its stdin instead of starting a new process through remoting for each.
+ * <p>
+ * Every command still runs in its own {@code sh -xe}, so a failing command, {@code cd} or {@code set} never affects the next one.
+ * The exit code of every command is written back to stdout after a random marker, which is filtered from the console.
+ * Commands of a batch are written at once, the ones after a failed command are skipped.
+ *
+ * @author liaozan
+ * @since 2022/4/27
+ */
+class ShellSession implements Closeable {
+
+    private static final Pattern VARIABLE_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private static final String END = "end";
+
+    private final String marker = UUID.randomUUID().toString().replace("-", "");
+
+    private final BlockingQueue<String> frames = new LinkedBlockingQueue<>();
+
+    private final Map<String, String> exported = new HashMap<>();
+
+    private final Proc process;
+
+    private final OutputStream stdin;
+
+    private ShellSession(Launcher launcher, BuilderContext context, TaskListener listener) throws IOException {
+        this.process = launcher.launch()
+                .cmds("sh")
+                .pwd(context.getWorkspace())
+                .stdout(new FramingOutputStream(listener.getLogger()))
+                .writeStdin()
+                .quiet(true)
+                .start();
+        this.stdin = process.getStdin();
+    }
+
+    static ShellSession start(BuilderContext context) throws IOException {
+        return new ShellSession(context.getLauncher(), context, context.getListener());
+    }
+
+    /**
+     * Run the commands in order, stops at the first failed command
+     *
+     * @return the exit code of every command, -1 for the skipped ones, and when each one finished
+     */
+    Result run(List<String> commands, EnvVars environment) throws IOException, InterruptedException {
+        StringBuilder script = new StringBuilder();
+        appendEnvironment(script, environment);
+        script.append("__integration_failed=0\n");
+        for (int i = 0; i < commands.size(); i++) {
+            String delimiter = "__INTEGRATION_EOF_" + marker;
+            script.append("if [ $__integration_failed = 0 ]; then\n")
+                    // the command must not read the protocol from stdin
+                    .append("sh -xec \"$(cat <<'").append(delimiter).append("'\n")
+                    .append(commands.get(i)).append('\n')
+                    .append(delimiter).append("\n)\" </dev/null 2>&1\n")
+                    .append("__integration_status=$?\n")
+                    .append("echo \"").append(marker).append(' ').append(i).append(" $__integration_status\"\n")
+                    .append("[ $__integration_status = 0 ] || __integration_failed=1\n")
+                    .append("fi\n");
+        }
+        script.append("echo \"").append(marker).append(' ').append(END).append("\"\n");
+        stdin.write(script.toString().getBytes(StandardCharsets.UTF_8));
+        stdin.flush();
+
+        Result result = new Result(commands.size());
+        while (true) {
+            String frame = frames.poll(1, TimeUnit.SECONDS);
+            if (frame == null) {
+                if (!process.isAlive()) {
+                    throw new IOException("shell session exited unexpectedly");
+                }
+                continue;
+            }
+            if (END.equals(frame)) {
+                return result;
+            }
+            String[] parts = frame.split(" ");
+            int index = Integer.parseInt(parts[0]);
+            result.exitCodes[index] = Integer.parseInt(parts[1]);
+            result.finishedAt[index] = System.nanoTime();
+        }
+    }
+
+    boolean isAlive() throws IOException, InterruptedException {
+        return process.isAlive();
+    }
+
+    /**
+     * Export the variables changed since the previous batch, the session itself keeps them for the next one
+     */
+    private void appendEnvironment(StringBuilder script, EnvVars environment) {
+        for (Iterator<Map.Entry<String, String>> iterator = exported.entrySet().iterator(); iterator.hasNext(); ) {
+            String name = iterator.next().getKey();
+            if (!environment.containsKey(name)) {
+                script.append("unset ").append(name).append('\n');
+                iterator.remove();
+            }
+        }
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+            String name = entry.getKey();
+            String value = StringUtils.defaultString(entry.getValue());
+            // names like git.branch can not be exported by a shell
+            if (!VARIABLE_NAME.matcher(name).matches() || value.equals(exported.get(name))) {
+                continue;
+            }
+            script.append("export ").append(name).append("='").append(value.replace("'", "'\\''")).append("'\n");
+            exported.put(name, value);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stdin.write("exit\n".getBytes(StandardCharsets.UTF_8));
+            stdin.close();
+        } catch (IOException e) {
+            // already gone
+        }
+        try {
+            process.kill();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Result {
+
+        private final int[] exitCodes;
+
+        private final long[] finishedAt;
+
+        private Result(int commandCount) {
+            this.exitCodes = new int[commandCount];
+            this.finishedAt = new long[commandCount];
+            Arrays.fill(exitCodes, -1);
+        }
+
+        int getExitCode(int index) {
+            return exitCodes[index];
+        }
+
+        long getFinishedAt(int index) {
+            return finishedAt[index];
+        }
+
+    }
+
+    /**
+     * Forwards the output of the commands to the console, except the exit code frames
+     */
+    private class FramingOutputStream extends OutputStream {
+
+        private final OutputStream console;
+
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        private FramingOutputStream(OutputStream console) {
+            this.console = console;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            line.write(b);
+            if (b == '\n') {
+                flushLine();
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            console.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (line.size() > 0) {
+                line.writeTo(console);
+                line.reset();
+            }
+            console.flush();
+        }
+
+        private void flushLine() throws IOException {
+            String content = line.toString(StandardCharsets.UTF_8.name());
+            line.reset();
+            // the frame may follow output of the command without a trailing newline
+            int frameStart = content.indexOf(marker + " ");
+            if (frameStart < 0) {
+                console.write(content.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (frameStart > 0) {
+                console.write((content.substring(0, frameStart) + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            frames.add(content.substring(frameStart + marker.length() + 1).trim());
+        }
+
+    }
+
+}
@@ -1,20 +1,36 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder.config;
 
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
 import com.schbrain.ci.jenkins.plugins.integration.builder.config.deploy.DeployStyleRadio;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.deploy.DeployTarget;
 import com.schbrain.ci.jenkins.plugins.integration.builder.config.deploy.service.ServiceDeployConfig;
+import com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DeployConstants;
 import com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants;
+import com.schbrain.ci.jenkins.plugins.integration.builder.stage.StageOutputStream;
+import com.schbrain.ci.jenkins.plugins.integration.builder.stage.StageScheduler;
 import com.schbrain.ci.jenkins.plugins.integration.builder.util.FileUtils;
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Util;
 import hudson.model.Descriptor;
+import hudson.model.StreamBuildListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Pattern;
 
 /**
  * @author liaozan
@@ -23,15 +39,28 @@ import java.util.List;
 @SuppressWarnings("unused")
 public class DeployToK8sConfig extends BuildConfig<DeployToK8sConfig> {
 
+    private static final int MAX_PARALLELISM = SystemProperties.getInteger(DeployToK8sConfig.class.getName() + ".maxParallelism", 4);
+
+    private static final String DEFAULT_TARGET_NAME = "default";
+
+    private static final String TARGETS_DIR_NAME = "deploy-targets";
+
+    private static final Pattern METADATA_FIELD = Pattern.compile("^metadata:\\s*(#.*)?$");
+
+    private static final Pattern NAMESPACE_FIELD = Pattern.compile("^namespace:\\s*\\S");
+
     private final String configLocation;
 
+    private final List<DeployTarget> deployTargets;
+
     private final DeployStyleRadio deployStyle;
 
     private final ServiceDeployConfig serviceDeployConfig;
 
     @DataBoundConstructor
-    public DeployToK8sConfig(String configLocation, DeployStyleRadio deployStyle, ServiceDeployConfig serviceDeployConfig) {
+    public DeployToK8sConfig(String configLocation, List<DeployTarget> deployTargets, DeployStyleRadio deployStyle, ServiceDeployConfig serviceDeployConfig) {
         this.configLocation = Util.fixNull(configLocation);
+        this.deployTargets = Util.fixNull(deployTargets);
         this.deployStyle = deployStyle;
         this.serviceDeployConfig = serviceDeployConfig;
     }
@@ -40,6 +69,11 @@ public class DeployToK8sConfig extends BuildConfig<DeployToK8sConfig> {
         return configLocation;
     }
 
+    public List<DeployTarget> getDeployTargets() {
+        // null when loaded from a config saved before deploy targets existed
+        return Util.fixNull(deployTargets);
+    }
+
     public DeployStyleRadio getDeployStyle() {
         return deployStyle;
     }
@@ -48,49 +82,284 @@ public class DeployToK8sConfig extends BuildConfig<DeployToK8sConfig> {
         return serviceDeployConfig;
     }
 
-    public void doBuild() throws Exception {
+    public void doBuild(BuilderContext context) throws Exception {
+        apply(context, render(context));
+    }
+
+    /**
+     * Render one manifest per deploy target, does not touch the cluster
+     *
+     * @return the manifest of every target, keyed by the target name
+     */
+    public Map<String, String> render(BuilderContext context) throws Exception {
+        EnvVars envVars = context.getEnvVars();
+        Map<String, String> manifests = new LinkedHashMap<>();
         String imageName = envVars.get(DockerConstants.IMAGE);
         if (StringUtils.isBlank(imageName)) {
             context.log("image name is empty ,skip deploy");
+            return manifests;
+        }
+        List<DeployTarget> targets = getEffectiveTargets();
+        for (DeployTarget target : targets) {
+            // every target renders with its own copy, the overrides of one target must not leak into the next
+            EnvVars targetEnvVars = new EnvVars(envVars);
+            if (StringUtils.isNotBlank(target.getNamespace())) {
+                targetEnvVars.put(DeployConstants.K8S_TARGET_NAMESPACE, target.getNamespace());
+            }
+            // targets render the same file names, each one into its own dir
+            File targetDir = getTargetDir(context, target, targets.size());
+            targetDir.mkdirs();
+            List<String> deployFiles = renderDeployFiles(context.withEnvVars(targetEnvVars), targetDir);
+            if (deployFiles.isEmpty()) {
+                continue;
+            }
+            manifests.put(target.getName(), mergeDeployFiles(context, deployFiles, target.getNamespace(), new File(targetDir, DeployConstants.MANIFEST_FILE_NAME)));
+            if (target == targets.get(0)) {
+                // keep the variables of the first target visible to the build, same as with a single cluster
+                targetEnvVars.remove(DeployConstants.K8S_TARGET_NAMESPACE);
+                envVars.putAll(targetEnvVars);
+            }
+        }
+        return manifests;
+    }
+
+    /**
+     * Apply the manifests produced by {@link #render(BuilderContext)}, the targets are deployed concurrently
+     *
+     * @throws IllegalStateException if the deploy failed on any target, after all targets are finished
+     */
+    public void apply(BuilderContext context, Map<String, String> manifests) throws Exception {
+        List<DeployTarget> targets = new ArrayList<>();
+        for (DeployTarget target : getEffectiveTargets()) {
+            if (manifests.containsKey(target.getName())) {
+                targets.add(target);
+            }
+        }
+        if (targets.isEmpty()) {
             return;
         }
-        // make sure to build Deployment first
-        buildDeployment();
-        buildService();
+        if (targets.size() == 1) {
+            DeployTarget target = targets.get(0);
+            executeK8sCommand(context, target, manifests.get(target.getName()));
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLELISM, targets.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), DeployToK8sConfig.class.getSimpleName()));
+        Map<DeployTarget, StageOutputStream> outputs = new LinkedHashMap<>();
+        Map<DeployTarget, Future<Long>> results = new LinkedHashMap<>();
+        try {
+            for (DeployTarget target : targets) {
+                StageOutputStream output = new StageOutputStream(context.getStageName() + ":" + target.getName(), context.getListener().getLogger());
+                BuilderContext targetContext = context.forStage(context.getStageName(), new StreamBuildListener(output, StandardCharsets.UTF_8));
+                outputs.put(target, output);
+                results.put(target, executor.submit(() -> {
+                    long startedAt = System.nanoTime();
+                    try {
+                        executeK8sCommand(targetContext, target, manifests.get(target.getName()));
+                    } finally {
+                        targetContext.closeSession();
+                    }
+                    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+                }));
+            }
+            reportResults(context, outputs, results);
+        } finally {
+            // an interrupted deploy must not go on while kubectl of a target is still running
+            StageScheduler.terminate(executor, context);
+            // the targets not waited for, e.g. on interrupt, still show their output
+            for (StageOutputStream output : outputs.values()) {
+                output.attach();
+            }
+        }
     }
 
-    private void buildDeployment() throws Exception {
+    private void reportResults(BuilderContext context, Map<DeployTarget, StageOutputStream> outputs, Map<DeployTarget, Future<Long>> results) throws InterruptedException, IOException {
+        List<String> failedTargets = new ArrayList<>();
+        List<String> summary = new ArrayList<>();
+        for (Map.Entry<DeployTarget, Future<Long>> result : results.entrySet()) {
+            String targetName = result.getKey().getName();
+            try {
+                long duration = result.getValue().get();
+                summary.add(String.format("%s: success in %sms", targetName, duration));
+            } catch (ExecutionException e) {
+                failedTargets.add(targetName);
+                summary.add(String.format("%s: failed, %s", targetName, e.getCause().getMessage()));
+            } finally {
+                // the output of the targets in the declared order
+                outputs.get(result.getKey()).attach();
+            }
+        }
+        context.log("deploy finished on %s of %s targets", results.size() - failedTargets.size(), results.size());
+        for (String line : summary) {
+            context.log("  %s", line);
+        }
+        if (!failedTargets.isEmpty()) {
+            throw new IllegalStateException(String.format("deploy failed on %s", String.join(", ", failedTargets)));
+        }
+    }
+
+    private List<DeployTarget> getEffectiveTargets() {
+        if (getDeployTargets().isEmpty()) {
+            return Collections.singletonList(new DeployTarget(DEFAULT_TARGET_NAME, getConfigLocation(), null));
+        }
+        Set<String> names = new HashSet<>();
+        for (DeployTarget target : getDeployTargets()) {
+            if (StringUtils.isBlank(target.getName())) {
+                throw new IllegalArgumentException("name of deploy target is required");
+            }
+            if (!names.add(target.getName())) {
+                throw new IllegalArgumentException(String.format("deploy target %s is declared twice", target.getName()));
+            }
+        }
+        return getDeployTargets();
+    }
+
+    private List<String> renderDeployFiles(BuilderContext targetContext, File targetDir) throws Exception {
+        List<String> deployFiles = new ArrayList<>();
+        // make sure to build Deployment first
         DeployStyleRadio deployStyle = getDeployStyle();
-        if (null == deployStyle) {
-            return;
+        if (deployStyle != null) {
+            deployFiles.add(deployStyle.getDeployFileLocation(targetContext, targetDir));
+        }
+        if (serviceDeployConfig != null) {
+            deployFiles.add(serviceDeployConfig.getServiceDeployFileLocation(targetContext, targetDir));
         }
+        return deployFiles;
+    }
 
-        String deployFileLocation = deployStyle.getDeployFileLocation(context);
-        executeK8sCommand(deployFileLocation);
+    /**
+     * @return the dir the deploy files and the manifest of the target are written to, the build script dir itself with a single target
+     */
+    private File getTargetDir(BuilderContext context, DeployTarget target, int targetCount) {
+        File buildScriptDir = context.getBuildScriptDir();
+        if (targetCount == 1) {
+            return buildScriptDir;
+        }
+        return new File(new File(buildScriptDir, TARGETS_DIR_NAME), target.getName().replaceAll("[^A-Za-z0-9_.-]", "-"));
     }
 
-    private void buildService() throws Exception {
-        if (serviceDeployConfig == null) {
-            return;
+    /**
+     * Merge the deploy files into one multi-document manifest, kubectl applies the documents in the order of the file,
+     * so the Deployment is still created first
+     *
+     * @param namespace the namespace of the target, written into every document that declares none, may be blank
+     */
+    private String mergeDeployFiles(BuilderContext context, List<String> deployFiles, String namespace, File manifestFile) throws IOException, InterruptedException {
+        StringBuilder manifest = new StringBuilder();
+        for (String deployFile : deployFiles) {
+            String content = readDeployFile(context, deployFile);
+            if (manifest.length() > 0) {
+                manifest.append("---\n");
+            }
+            manifest.append(content);
+            if (!content.endsWith("\n")) {
+                manifest.append('\n');
+            }
         }
-        String deployFileLocation = serviceDeployConfig.getServiceDeployFileLocation(context);
-        executeK8sCommand(deployFileLocation);
+        String content = StringUtils.isBlank(namespace) ? manifest.toString() : setDefaultNamespace(manifest.toString(), namespace);
+        manifestFile.getParentFile().mkdirs();
+        FileUtils.writeUtf8String(content, manifestFile);
+        return manifestFile.getPath();
     }
 
-    private void executeK8sCommand(String deployFileLocation) throws InterruptedException, IOException {
-        String configLocation = getConfigLocation();
-        if (null == configLocation) {
+    /**
+     * Rendered files live in the build script dir on the controller, a specified deploy file lives in the workspace on the agent
+     */
+    private String readDeployFile(BuilderContext context, String deployFile) throws IOException, InterruptedException {
+        Path path = Paths.get(deployFile);
+        if (path.startsWith(context.getBuildScriptDir().toPath())) {
+            return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        }
+        return context.getWorkspace().child(deployFile).readToString();
+    }
+
+    /**
+     * Copy the manifest to the staging dir on the agent, kubectl runs there
+     */
+    private FilePath stageManifest(BuilderContext context, String manifestLocation) throws IOException, InterruptedException {
+        String relativePath = context.getBuildScriptDir().toPath().relativize(Paths.get(manifestLocation)).toString();
+        FilePath stagedManifest = context.getStagingDir().child(relativePath);
+        stagedManifest.getParent().mkdirs();
+        stagedManifest.copyFrom(new FilePath(new File(manifestLocation)));
+        return stagedManifest;
+    }
+
+    private void executeK8sCommand(BuilderContext context, DeployTarget target, String manifestLocation) throws InterruptedException, IOException {
+        String configLocation = StringUtils.defaultIfBlank(target.getConfigLocation(), getConfigLocation());
+        if (StringUtils.isBlank(configLocation)) {
             context.log("not specified configLocation of k8s config ,will use default config .");
         }
 
-        String deployFileRelativePath = FileUtils.toRelativePath(workspace, new FilePath(new File(deployFileLocation)));
-        String command = String.format("kubectl apply -f %s", deployFileRelativePath);
+        FilePath stagedManifest = stageManifest(context, manifestLocation);
+        // server-side apply, conflicts are forced to keep the overwrite semantics of client-side apply
+        String command = String.format("kubectl apply --server-side --force-conflicts --field-manager=%s -f \"%s\"", DeployConstants.FIELD_MANAGER, stagedManifest.getRemote());
         if (StringUtils.isNotBlank(configLocation)) {
             command = command + " --kubeconfig " + configLocation;
         }
         context.execute(command);
     }
 
+    /**
+     * kubectl rejects a document of another namespace than the one passed on the command line, and a specified deploy
+     * file may declare its own one. So the namespace is not passed on the command line, it is written into every
+     * document of the manifest that does not declare {@code metadata.namespace} itself
+     */
+    static String setDefaultNamespace(String manifest, String namespace) {
+        List<String> lines = new ArrayList<>(Arrays.asList(manifest.split("\n", -1)));
+        int documentStart = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).startsWith("---")) {
+                i += setDefaultNamespace(lines, documentStart, i, namespace);
+                documentStart = i + 1;
+            }
+        }
+        setDefaultNamespace(lines, documentStart, lines.size(), namespace);
+        return String.join("\n", lines);
+    }
+
+    /**
+     * @return the number of inserted lines, 1 if the namespace was written into the document, otherwise 0
+     */
+    private static int setDefaultNamespace(List<String> lines, int documentStart, int documentEnd, String namespace) {
+        int metadataLine = -1;
+        // indent of the direct children of metadata, deeper keys like a label named namespace do not count
+        int childIndent = -1;
+        for (int i = documentStart; i < documentEnd; i++) {
+            String line = lines.get(i);
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            if (!Character.isWhitespace(line.charAt(0))) {
+                if (metadataLine >= 0) {
+                    // a top-level key ends the metadata block
+                    break;
+                }
+                if (METADATA_FIELD.matcher(line).matches()) {
+                    metadataLine = i;
+                }
+                continue;
+            }
+            if (metadataLine < 0) {
+                continue;
+            }
+            int indent = line.length() - line.replaceAll("^\\s+", "").length();
+            if (childIndent < 0) {
+                childIndent = indent;
+            }
+            if (indent == childIndent && NAMESPACE_FIELD.matcher(trimmed).find()) {
+                return 0;
+            }
+        }
+        if (metadataLine < 0) {
+            // not a resource, or metadata written in flow style, left as it is
+            return 0;
+        }
+        lines.add(metadataLine + 1, StringUtils.repeat(" ", childIndent < 0 ? 2 : childIndent) + "namespace: " + namespace);
+        return 1;
+    }
+
     @Extension
     public static class DescriptorImpl extends Descriptor<DeployToK8sConfig> {
 
@@ -100,4 +369,4 @@ public class DeployToK8sConfig extends BuildConfig<DeployToK8sConfig> {
 
     }
 
-}
\ No newline at end of file
+}
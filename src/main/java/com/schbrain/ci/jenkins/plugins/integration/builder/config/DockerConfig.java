@@ -1,9 +1,16 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder.config;
 
-import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptArchive;
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.BuildKitConfig;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.ImageCleanupWork;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.ImageFingerprint;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.ImagePusher;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.PushTarget;
 import com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants;
 import com.schbrain.ci.jenkins.plugins.integration.builder.util.FileUtils;
 import com.schbrain.ci.jenkins.plugins.integration.builder.util.TemplateUtils;
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Util;
@@ -12,11 +19,12 @@ import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.springframework.lang.Nullable;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.Optional;
-
-import static com.schbrain.ci.jenkins.plugins.integration.builder.util.FileUtils.lookupFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
 
 /**
  * @author liaozan
@@ -29,13 +37,15 @@ public class DockerConfig extends BuildConfig<DockerConfig> {
     private final PushConfig pushConfig;
     private final Boolean deleteImageAfterBuild;
     private final String javaOpts;
+    private final BuildKitConfig buildKitConfig;
 
     @DataBoundConstructor
-    public DockerConfig(Boolean buildImage, PushConfig pushConfig, Boolean deleteImageAfterBuild, String javaOpts) {
+    public DockerConfig(Boolean buildImage, PushConfig pushConfig, Boolean deleteImageAfterBuild, String javaOpts, BuildKitConfig buildKitConfig) {
         this.buildImage = Util.fixNull(buildImage, false);
         this.pushConfig = pushConfig;
         this.deleteImageAfterBuild = Util.fixNull(deleteImageAfterBuild, false);
         this.javaOpts = javaOpts;
+        this.buildKitConfig = buildKitConfig;
     }
 
     @Nullable
@@ -55,41 +65,93 @@ public class DockerConfig extends BuildConfig<DockerConfig> {
         return javaOpts;
     }
 
+    @Nullable
+    public BuildKitConfig getBuildKitConfig() {
+        return buildKitConfig;
+    }
+
     @Override
-    public void doBuild() throws Exception {
+    public void doBuild(BuilderContext context) throws Exception {
         if (!getBuildImage()) {
             context.log("docker build image is skipped");
             return;
         }
+        EnvVars envVars = context.getEnvVars();
         envVars.put(DockerConstants.JAVA_OPTS, Optional.ofNullable(getJavaOpts()).orElse(""));
 
-        FilePath buildScriptDir = new FilePath(FileManager.getBuildScriptDir(build));
-        FilePath dockerfile = lookupFile(buildScriptDir, DockerConstants.DOCKERFILE_NAME, context.getLogger());
-        if (dockerfile == null) {
+        Path dockerfileTemplate = lookupDockerfileTemplate(context);
+        if (dockerfileTemplate == null) {
             context.log("Dockerfile not exist, skip docker build");
             return;
         }
 
-        resolveDockerfilePlaceHolder(dockerfile);
+        String dockerfileContent = resolveDockerfilePlaceHolder(context, dockerfileTemplate);
+        // keep the rendered Dockerfile with the build
+        FileUtils.writeUtf8String(dockerfileContent, new File(context.getBuildScriptDir(), DockerConstants.DOCKERFILE_NAME));
 
-        String imageName = getFullImageName();
+        String imageName = getFullImageName(context);
         if (imageName == null) {
             return;
         }
         envVars.put(DockerConstants.IMAGE, imageName);
+        ImageCleanupWork.markInUse(imageName);
 
-        String relativePath = FileUtils.toRelativePath(workspace, dockerfile);
-        String command = String.format("docker build --pull -t %s -f %s .", imageName, relativePath);
-        context.execute(command);
+        BuildKitConfig buildKitConfig = getBuildKitConfig();
+        String fingerprint = ImageFingerprint.compute(context, dockerfileContent, envVars.get(DockerConstants.JAVA_OPTS), buildKitConfig != null);
+        if (fingerprint != null && ImageFingerprint.reuse(context, fingerprint, imageName)) {
+            context.setImageHasBeenBuilt();
+            return;
+        }
+
+        String label = fingerprint == null ? "" : String.format(" --label %s=%s", ImageFingerprint.LABEL, fingerprint);
+        FilePath dockerfile = writeDockerfile(context, dockerfileContent);
+        try {
+            String dockerfilePath = String.format("\"%s\"", dockerfile.getRemote());
+            if (buildKitConfig != null) {
+                buildKitConfig.build(context, imageName, label, dockerfilePath);
+            } else {
+                // the base images are already pulled while fingerprinting
+                String pull = fingerprint == null ? " --pull" : "";
+                String command = String.format("docker build%s -t %s%s -f %s .", pull, imageName, label, dockerfilePath);
+                context.execute(command);
+            }
+        } finally {
+            dockerfile.delete();
+        }
         context.setImageHasBeenBuilt();
+        if (fingerprint != null) {
+            ImageFingerprint.remember(fingerprint, imageName);
+        }
+    }
+
+    @Nullable
+    private Path lookupDockerfileTemplate(BuilderContext context) throws IOException {
+        BuildScriptArchive buildScriptSource = context.getBuildScriptSource();
+        if (buildScriptSource == null) {
+            throw new IllegalStateException("build script is not prepared");
+        }
+        return buildScriptSource.findClosest(DockerConstants.DOCKERFILE_NAME);
     }
 
-    private void resolveDockerfilePlaceHolder(FilePath dockerfile) throws IOException, InterruptedException {
-        String resolved = TemplateUtils.resolve(dockerfile.readToString(), envVars);
-        dockerfile.write(resolved, StandardCharsets.UTF_8.name());
+    /**
+     * Render the Dockerfile in memory, the template is read straight from the build-script archive
+     */
+    private String resolveDockerfilePlaceHolder(BuilderContext context, Path dockerfileTemplate) throws IOException {
+        String template = new String(Files.readAllBytes(dockerfileTemplate), StandardCharsets.UTF_8);
+        return TemplateUtils.resolve(template, context.getEnvVars());
     }
 
-    private String getFullImageName() {
+    /**
+     * Write the rendered Dockerfile to the staging dir on the agent, outside of the build context
+     */
+    private FilePath writeDockerfile(BuilderContext context, String content) throws IOException, InterruptedException {
+        FilePath stagingDir = context.getStagingDir();
+        stagingDir.mkdirs();
+        return stagingDir.createTextTempFile(DockerConstants.DOCKERFILE_NAME, "", content, false);
+    }
+
+    private String getFullImageName(BuilderContext context) {
+        EnvVars envVars = context.getEnvVars();
         String registry = null;
         PushConfig pushConfig = getPushConfig();
         if (pushConfig != null) {
@@ -104,7 +166,7 @@ public class DockerConfig extends BuildConfig<DockerConfig> {
 
         String appName = envVars.get(DockerConstants.APP_NAME);
         String version = envVars.get(DockerConstants.VERSION);
-        int buildNumber = build.getNumber();
+        int buildNumber = context.getBuild().getNumber();
         return String.format("%s/%s:%s-%s", registry, appName, version, buildNumber);
     }
 
@@ -117,11 +179,13 @@ public class DockerConfig extends BuildConfig<DockerConfig> {
 
         private final Boolean pushImage;
         private final String registry;
+        private final List<PushTarget> pushTargets;
 
         @DataBoundConstructor
-        public PushConfig(Boolean pushImage, String registry) {
+        public PushConfig(Boolean pushImage, String registry, List<PushTarget> pushTargets) {
             this.pushImage = pushImage;
             this.registry = registry;
+            this.pushTargets = Util.fixNull(pushTargets);
         }
 
         public Boolean getPushImage() {
@@ -132,19 +196,59 @@ public class DockerConfig extends BuildConfig<DockerConfig> {
             return registry;
         }
 
+        public List<PushTarget> getPushTargets() {
+            // null when loaded from a config saved before push targets existed
+            return Util.fixNull(pushTargets);
+        }
+
         @Override
-        public void doBuild() throws Exception {
+        public void doBuild(BuilderContext context) throws Exception {
             if (!getPushImage()) {
-                logger.println("docker push image is skipped");
+                context.getLogger().println("docker push image is skipped");
                 return;
             }
 
-            String imageName = envVars.get(DockerConstants.IMAGE);
+            String imageName = context.getEnvVars().get(DockerConstants.IMAGE);
             if (imageName == null) {
                 return;
             }
-            String command = String.format("docker push %s", imageName);
-            context.execute(command);
+            List<String> mirrorImages = getMirrorImages(imageName);
+            List<String> images = new ArrayList<>();
+            images.add(imageName);
+            images.addAll(mirrorImages);
+            try {
+                List<String> tagCommands = new ArrayList<>();
+                for (String mirrorImage : mirrorImages) {
+                    tagCommands.add(String.format("docker tag %s %s", imageName, mirrorImage));
+                }
+                if (!tagCommands.isEmpty()) {
+                    context.execute(tagCommands);
+                }
+                ImagePusher.push(context, images);
+            } finally {
+                // the mirror tags share the image of the built one, only the tags are removed
+                for (String mirrorImage : mirrorImages) {
+                    context.executeForOutput("docker", "rmi", mirrorImage);
+                }
+            }
+        }
+
+        /**
+         * @return the image name in every push target, the name and tag are the same as the ones of the built image
+         */
+        private List<String> getMirrorImages(String imageName) {
+            String repository = StringUtils.substringAfterLast(imageName, "/");
+            Set<String> mirrorImages = new LinkedHashSet<>();
+            for (PushTarget target : getPushTargets()) {
+                if (StringUtils.isBlank(target.getRegistry())) {
+                    throw new IllegalArgumentException("registry of push target is required");
+                }
+                String mirrorImage = StringUtils.stripEnd(target.getRegistry(), "/") + "/" + repository;
+                if (!mirrorImage.equals(imageName)) {
+                    mirrorImages.add(mirrorImage);
+                }
+            }
+            return new ArrayList<>(mirrorImages);
         }
 
         @Extension
@@ -1,11 +1,24 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder.config;
 
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.maven.MavenDaemon;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.maven.ReactorModules;
 import hudson.Extension;
 import hudson.Util;
 import hudson.model.Descriptor;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.scm.ChangeLogSet;
+import hudson.scm.ChangeLogSet.Entry;
+import jenkins.scm.RunWithSCM;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author liaozan
  * @since 2022/1/16
@@ -17,10 +30,16 @@ public class MavenConfig extends BuildConfig<MavenConfig> {
 
     private final String javaHome;
 
+    private final Boolean incrementalBuild;
+
+    private final Boolean daemonBuild;
+
     @DataBoundConstructor
-    public MavenConfig(String mvnCommand, String javaHome) {
+    public MavenConfig(String mvnCommand, String javaHome, Boolean incrementalBuild, Boolean daemonBuild) {
         this.mvnCommand = Util.fixNull(mvnCommand);
         this.javaHome = Util.fixNull(javaHome);
+        this.incrementalBuild = Util.fixNull(incrementalBuild, false);
+        this.daemonBuild = Util.fixNull(daemonBuild, false);
     }
 
     public String getMvnCommand() {
@@ -31,20 +50,121 @@ public class MavenConfig extends BuildConfig<MavenConfig> {
         return javaHome;
     }
 
+    public Boolean getIncrementalBuild() {
+        return incrementalBuild;
+    }
+
+    public Boolean getDaemonBuild() {
+        return daemonBuild;
+    }
+
     @Override
-    public void doBuild() throws Exception {
+    public void doBuild(BuilderContext context) throws Exception {
         String mavenCommand = getMvnCommand();
         if (StringUtils.isBlank(mavenCommand)) {
-            logger.println("maven command is empty, skip maven build");
+            context.getLogger().println("maven command is empty, skip maven build");
             return;
         }
 
         String javaHome = getJavaHome();
         if (StringUtils.isNotBlank(javaHome)) {
-            envVars.put("JAVA_HOME", javaHome);
+            context.getEnvVars().put("JAVA_HOME", javaHome);
+        }
+
+        if (Boolean.TRUE.equals(getIncrementalBuild())) {
+            mavenCommand = appendAffectedModules(context, mavenCommand);
+        }
+
+        if (Boolean.TRUE.equals(getDaemonBuild())) {
+            executeOnDaemon(context, mavenCommand, javaHome);
+            return;
         }
+        executeOnFreshJvm(context, mavenCommand);
+    }
 
+    private void executeOnFreshJvm(BuilderContext context, String mavenCommand) throws IOException, InterruptedException {
+        long startedAt = System.nanoTime();
         context.execute(mavenCommand);
+        MavenDaemon.recordColdDuration(getJobKey(context), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+    }
+
+    /**
+     * Run the build on a daemon of mvnd, falls back to a fresh JVM if the command is not a plain mvn one or the pool is exhausted
+     */
+    private void executeOnDaemon(BuilderContext context, String mavenCommand, String javaHome) throws IOException, InterruptedException {
+        String daemonCommand = MavenDaemon.toDaemonCommand(mavenCommand, javaHome);
+        if (daemonCommand == null) {
+            context.log("maven command does not start with mvn, run without daemon");
+            executeOnFreshJvm(context, mavenCommand);
+            return;
+        }
+        try (MavenDaemon.Lease lease = MavenDaemon.acquire(context.getNodeName(), javaHome)) {
+            if (lease == null) {
+                context.log("all %s maven daemons of this agent are busy, run without daemon", MavenDaemon.getPoolSize());
+                executeOnFreshJvm(context, mavenCommand);
+                return;
+            }
+            long startedAt = System.nanoTime();
+            context.execute(daemonCommand);
+            long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+            long coldDuration = MavenDaemon.getColdDuration(getJobKey(context));
+            if (coldDuration < 0) {
+                context.log("maven build on daemon took %sms, no build on a fresh JVM to compare with yet", duration);
+            } else {
+                context.log("maven build on daemon took %sms, saved %sms against the average build on a fresh JVM", duration, coldDuration - duration);
+            }
+        }
+    }
+
+    private String getJobKey(BuilderContext context) {
+        return context.getBuild().getParent().getFullName() + ":" + getJavaHome();
+    }
+
+    /**
+     * Limit the build to the modules affected by the change set, falls back to a full build if that is not possible
+     */
+    private String appendAffectedModules(BuilderContext context, String mavenCommand) throws IOException, InterruptedException {
+        if (mavenCommand.contains(" -pl ") || mavenCommand.contains(" --projects ")) {
+            context.log("maven command already selects projects, skip incremental build");
+            return mavenCommand;
+        }
+        Run<?, ?> previousBuild = context.getBuild().getPreviousBuild();
+        if (previousBuild == null || previousBuild.getResult() != Result.SUCCESS) {
+            // the change set only covers the commits since the previous build, the changes of a failed one may never be built
+            context.log("previous build did not succeed, fall back to full build");
+            return mavenCommand;
+        }
+        ReactorModules reactor = ReactorModules.parse(context.getWorkspace());
+        if (reactor == null) {
+            context.log("pom.xml not found in workspace, fall back to full build");
+            return mavenCommand;
+        }
+        Set<String> changedPaths = getChangedPaths(context);
+        if (changedPaths.isEmpty()) {
+            context.log("no changes found in change set, fall back to full build");
+            return mavenCommand;
+        }
+        Set<String> affectedModules = reactor.affectedModules(changedPaths);
+        if (affectedModules == null) {
+            context.log("root or shared pom changed, or changes are outside of modules, fall back to full build");
+            return mavenCommand;
+        }
+        context.log("incremental build of modules: %s", affectedModules);
+        return String.format("%s -pl %s -am -amd", mavenCommand, String.join(",", affectedModules));
+    }
+
+    private Set<String> getChangedPaths(BuilderContext context) {
+        Set<String> changedPaths = new LinkedHashSet<>();
+        Run<?, ?> run = context.getBuild();
+        if (!(run instanceof RunWithSCM)) {
+            return changedPaths;
+        }
+        for (ChangeLogSet<? extends Entry> changeSet : ((RunWithSCM<?, ?>) run).getChangeSets()) {
+            for (Entry entry : changeSet) {
+                changedPaths.addAll(entry.getAffectedPaths());
+            }
+        }
+        return changedPaths;
     }
 
     @Extension
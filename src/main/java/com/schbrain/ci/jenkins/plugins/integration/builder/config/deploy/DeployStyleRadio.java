@@ -5,6 +5,8 @@ import hudson.model.Describable;
 import hudson.model.Descriptor;
 import jenkins.model.Jenkins;
 
+import java.io.File;
+
 /**
  * @author zhangdd on 2022/1/20
  */
@@ -14,7 +16,10 @@ public abstract class DeployStyleRadio implements Describable<DeployStyleRadio>
     // Abstract methods to be implemented by subclasses
     //---------------------------------------------------------------------
 
-    public abstract String getDeployFileLocation(BuilderContext builderContext) throws Exception;
+    /**
+     * @param outputDir the dir a rendered deploy file is written to, one per deploy target
+     */
+    public abstract String getDeployFileLocation(BuilderContext builderContext, File outputDir) throws Exception;
 
     @Override
     @SuppressWarnings("unchecked")
@@ -0,0 +1,46 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.deploy;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A cluster and namespace to deploy to, blank values fall back to the defaults of {@code DeployToK8sConfig}
+ *
+ * @author liaozan
+ * @since 2022/4/26
+ */
+@SuppressWarnings("unused")
+public class DeployTarget extends AbstractDescribableImpl<DeployTarget> {
+
+    private final String name;
+    private final String configLocation;
+    private final String namespace;
+
+    @DataBoundConstructor
+    public DeployTarget(String name, String configLocation, String namespace) {
+        this.name = Util.fixNull(name);
+        this.configLocation = Util.fixNull(configLocation);
+        this.namespace = Util.fixNull(namespace);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getConfigLocation() {
+        return configLocation;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<DeployTarget> {
+
+    }
+
+}
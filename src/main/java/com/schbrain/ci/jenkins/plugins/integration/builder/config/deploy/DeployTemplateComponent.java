@@ -1,14 +1,16 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder.config.deploy;
 
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptArchive;
 import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
-import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
 import com.schbrain.ci.jenkins.plugins.integration.builder.util.TemplateUtils;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
 import hudson.Extension;
+import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -62,16 +64,18 @@ public class DeployTemplateComponent extends DeployStyleRadio {
     }
 
     @Override
-    public String getDeployFileLocation(BuilderContext context) throws Exception {
+    public String getDeployFileLocation(BuilderContext context, File outputDir) throws Exception {
         Path templateFile = getDeployTemplate(context);
-        Path deployFile = Paths.get(templateFile.getParent().toString(), DEPLOYMENT_DEPLOY_FILE_NAME);
+        // the rendered file is an artifact of the build, the template stays in the shared cache
+        Path deployFile = Paths.get(outputDir.getPath(), DEPLOYMENT_DEPLOY_FILE_NAME);
         contributeEnv(context.getEnvVars());
         TemplateUtils.resolveDeployFilePlaceholder(templateFile, deployFile, context);
         return deployFile.toString();
     }
 
     private void contributeEnv(EnvVars envVars) {
-        envVars.put(K8S_POD_NAMESPACE, getNamespace());
+        // the namespace of the deploy target wins over the configured one
+        envVars.put(K8S_POD_NAMESPACE, StringUtils.defaultIfBlank(envVars.get(K8S_TARGET_NAMESPACE), getNamespace()));
         envVars.put(K8S_POD_PORT, getPort());
         envVars.put(K8S_POD_REPLICAS, getReplicas());
         envVars.put(K8S_POD_MEMORY_REQUEST, getMemoryRequest());
@@ -79,9 +83,12 @@ public class DeployTemplateComponent extends DeployStyleRadio {
         envVars.put(K8S_POD_NODE_POOL_ID, getNodePoolId());
     }
 
-    private Path getDeployTemplate(BuilderContext context) {
-        File buildScriptDir = FileManager.getBuildScriptDir(context.getBuild());
-        return Paths.get(buildScriptDir.getPath(), DEPLOYMENT_TEMPLATE_FILE_NAME);
+    private Path getDeployTemplate(BuilderContext context) throws IOException {
+        BuildScriptArchive buildScriptSource = context.getBuildScriptSource();
+        if (buildScriptSource == null) {
+            throw new IllegalStateException("build script is not prepared");
+        }
+        return buildScriptSource.getEntry(DEPLOYMENT_TEMPLATE_FILE_NAME);
     }
 
     @Extension
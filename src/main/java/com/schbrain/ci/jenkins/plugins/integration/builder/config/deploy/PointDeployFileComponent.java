@@ -5,6 +5,8 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import java.io.File;
+
 /**
  * @author zhangdd on 2022/1/20
  */
@@ -23,7 +25,7 @@ public class PointDeployFileComponent extends DeployStyleRadio {
     }
 
     @Override
-    public String getDeployFileLocation(BuilderContext builderContext) {
+    public String getDeployFileLocation(BuilderContext builderContext, File outputDir) {
         return getDeployFileLocation();
     }
 
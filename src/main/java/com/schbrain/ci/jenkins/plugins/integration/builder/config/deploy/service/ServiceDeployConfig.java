@@ -1,13 +1,14 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder.config.deploy.service;
 
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptArchive;
 import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
-import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
 import com.schbrain.ci.jenkins.plugins.integration.builder.util.TemplateUtils;
 import hudson.EnvVars;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.springframework.util.StringUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -49,9 +50,13 @@ public class ServiceDeployConfig {
         return servicePort;
     }
 
-    public String getServiceDeployFileLocation(BuilderContext context) throws Exception {
+    /**
+     * @param outputDir the dir the rendered deploy file is written to, one per deploy target
+     */
+    public String getServiceDeployFileLocation(BuilderContext context, File outputDir) throws Exception {
         Path serviceTemplate = getServiceDeployTemplate(context);
-        Path serviceDeployFile = Paths.get(serviceTemplate.getParent().toString(), SERVICE_DEPLOY_FILE_NAME);
+        // the rendered file is an artifact of the build, the template stays in the shared cache
+        Path serviceDeployFile = Paths.get(outputDir.getPath(), SERVICE_DEPLOY_FILE_NAME);
         contributeEnv(context.getEnvVars());
         TemplateUtils.resolveDeployFilePlaceholder(serviceTemplate, serviceDeployFile, context);
         return serviceDeployFile.toString();
@@ -60,7 +65,9 @@ public class ServiceDeployConfig {
     private void contributeEnv(EnvVars envVars) {
         envVars.put(K8S_SERVICE_MODE, getServiceMode());
 
-        if (StringUtils.hasText(getServiceNamespace())) {
+        if (StringUtils.hasText(envVars.get(K8S_TARGET_NAMESPACE))) {
+            envVars.put(K8S_SERVICE_NAMESPACE, envVars.get(K8S_TARGET_NAMESPACE));
+        } else if (StringUtils.hasText(getServiceNamespace())) {
             envVars.put(K8S_SERVICE_NAMESPACE, getServiceNamespace());
         } else {
             envVars.put(K8S_SERVICE_NAMESPACE, envVars.get(K8S_POD_NAMESPACE));
@@ -79,9 +86,12 @@ public class ServiceDeployConfig {
         }
     }
 
-    private Path getServiceDeployTemplate(BuilderContext context) {
-        File buildScriptDir = FileManager.getBuildScriptDir(context.getBuild());
-        return Paths.get(buildScriptDir.getPath(), SERVICE_TEMPLATE_FILE_NAME);
+    private Path getServiceDeployTemplate(BuilderContext context) throws IOException {
+        BuildScriptArchive buildScriptSource = context.getBuildScriptSource();
+        if (buildScriptSource == null) {
+            throw new IllegalStateException("build script is not prepared");
+        }
+        return buildScriptSource.getEntry(SERVICE_TEMPLATE_FILE_NAME);
     }
 
 }
\ No newline at end of file
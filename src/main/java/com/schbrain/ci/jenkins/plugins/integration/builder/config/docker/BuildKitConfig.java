@@ -0,0 +1,306 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.docker;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
+import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.model.Node;
+import hudson.model.StreamBuildListener;
+import jenkins.util.SystemProperties;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants.APP_NAME;
+
+/**
+ * Build with buildx and keep the layer cache outside of the builder, so ephemeral agents do not start cold.
+ * <p>
+ * The cache is scoped by {@code APP_NAME} and branch, either in a local directory of the agent or in a registry.
+ * The {@code docker} driver of buildx can not export a cache, builds run on a builder of the {@code docker-container} driver,
+ * created on the agent when it does not exist yet.
+ *
+ * @author liaozan
+ * @since 2022/4/22
+ */
+public class BuildKitConfig {
+
+    public static final String CACHE_LOCAL = "local";
+
+    public static final String CACHE_REGISTRY = "registry";
+
+    private static final String DEFAULT_LOCAL_CACHE_DIR = "integration-cache/buildkit";
+
+    private static final String DEFAULT_BRANCH = "default";
+
+    private static final String BUILDER_NAME = SystemProperties.getString(BuildKitConfig.class.getName() + ".builder", "integration");
+
+    private static final String CONTAINER_DRIVER = "docker-container";
+
+    private static final String CURRENT_VERSION_FILE = "current";
+
+    private static final String VERSION_PREFIX = "v-";
+
+    /**
+     * entries of a cache dir written before the cache was versioned, the cache itself was the scope dir
+     */
+    private static final List<String> UNVERSIONED_ENTRIES = Arrays.asList("index.json", "blobs", "ingest");
+
+    private static final Map<String, LocalCacheVersions> LOCAL_CACHES = new ConcurrentHashMap<>();
+
+    private final String cacheType;
+
+    private final String cacheLocation;
+
+    @DataBoundConstructor
+    public BuildKitConfig(String cacheType, String cacheLocation) {
+        this.cacheType = StringUtils.defaultIfBlank(cacheType, CACHE_LOCAL);
+        this.cacheLocation = cacheLocation;
+    }
+
+    public String getCacheType() {
+        return cacheType;
+    }
+
+    public String getCacheLocation() {
+        return cacheLocation;
+    }
+
+    /**
+     * Build the image with buildx, the cache of the previous build of the same app and branch is imported and the new one exported
+     */
+    public void build(BuilderContext context, String imageName, String extraArguments, String dockerfile) throws IOException, InterruptedException {
+        if (CACHE_REGISTRY.equals(getCacheType())) {
+            if (StringUtils.isBlank(getCacheLocation())) {
+                throw new IllegalArgumentException("cache location is required for registry cache");
+            }
+            String cacheRef = String.format("%s:cache-%s", StringUtils.removeEnd(getCacheLocation(), "/"), getScope(context).replace('/', '-'));
+            build(context, imageName, extraArguments, dockerfile, String.format("--cache-from type=registry,ref=%s --cache-to type=registry,ref=%s,mode=max", cacheRef, cacheRef));
+            return;
+        }
+
+        LocalCacheVersions versions = getLocalCacheVersions(getLocalCacheRoot(context).child(getScope(context)));
+        // concurrent builds of the same scope must not export into the same dir
+        String exportVersion = VERSION_PREFIX + context.getBuild().getNumber() + FileManager.getExecutionSuffix(context.getBuildScriptDir());
+        String importVersion = versions.acquire(exportVersion);
+        try {
+            // export to a new version and publish it afterwards, otherwise the local cache only ever grows
+            String cacheArguments = String.format("--cache-to type=local,dest=%s,mode=max", versions.getDir().child(exportVersion).getRemote());
+            if (importVersion != null) {
+                cacheArguments = String.format("--cache-from type=local,src=%s %s", versions.getDir().child(importVersion).getRemote(), cacheArguments);
+            }
+            build(context, imageName, extraArguments, dockerfile, cacheArguments);
+            versions.publish(exportVersion);
+        } finally {
+            // also deletes the export of a failed build
+            versions.release(importVersion, exportVersion);
+        }
+    }
+
+    private void build(BuilderContext context, String imageName, String extraArguments, String dockerfile, String cacheArguments) throws IOException, InterruptedException {
+        String builder = ensureBuilder(context);
+        String command = String.format("docker buildx build --builder %s --load --progress=plain --pull -t %s%s %s -f %s .", builder, imageName, extraArguments, cacheArguments, dockerfile);
+        CacheStatistics statistics = new CacheStatistics();
+        BuilderContext countingContext = context.forStage(context.getStageName(), new StreamBuildListener(
+                new TeeOutputStream(context.getListener().getLogger(), statistics), StandardCharsets.UTF_8));
+        try {
+            countingContext.execute(command);
+        } finally {
+            countingContext.closeSession();
+        }
+        context.log("buildkit cache: %s of %s steps cached (%s%%)", statistics.getCached(), statistics.getSteps(), statistics.getHitRate());
+    }
+
+    /**
+     * Create the builder if the agent does not have it yet, a concurrent build may create it at the same time
+     *
+     * @return the name of the builder
+     * @throws IllegalStateException if the builder can not be created or does not use the {@code docker-container} driver
+     */
+    private static String ensureBuilder(BuilderContext context) throws IOException, InterruptedException {
+        String inspection = context.executeForOutput("docker", "buildx", "inspect", BUILDER_NAME);
+        if (inspection == null) {
+            context.log("create buildx builder %s", BUILDER_NAME);
+            context.executeForOutput("docker", "buildx", "create", "--name", BUILDER_NAME, "--driver", CONTAINER_DRIVER);
+            inspection = context.executeForOutput("docker", "buildx", "inspect", BUILDER_NAME);
+        }
+        if (inspection == null) {
+            throw new IllegalStateException(String.format("buildx builder %s could not be created, is buildx installed on the agent?", BUILDER_NAME));
+        }
+        String driver = null;
+        for (String line : inspection.split("\n")) {
+            if (line.startsWith("Driver:")) {
+                driver = line.substring("Driver:".length()).trim();
+                break;
+            }
+        }
+        if (!CONTAINER_DRIVER.equals(driver)) {
+            throw new IllegalStateException(String.format("buildx builder %s uses the %s driver, cache export requires the %s driver",
+                    BUILDER_NAME, driver, CONTAINER_DRIVER));
+        }
+        return BUILDER_NAME;
+    }
+
+    private static LocalCacheVersions getLocalCacheVersions(FilePath dir) {
+        String node = dir.getChannel() == null ? "" : dir.getChannel().toString();
+        return LOCAL_CACHES.computeIfAbsent(node + ":" + dir.getRemote(), key -> new LocalCacheVersions(dir));
+    }
+
+    private FilePath getLocalCacheRoot(BuilderContext context) {
+        if (StringUtils.isNotBlank(getCacheLocation())) {
+            return new FilePath(context.getWorkspace().getChannel(), getCacheLocation());
+        }
+        Node node = context.getNode();
+        FilePath rootPath = node == null ? null : node.getRootPath();
+        if (rootPath == null) {
+            throw new IllegalStateException("agent is offline, could not locate the local buildkit cache");
+        }
+        return rootPath.child(DEFAULT_LOCAL_CACHE_DIR);
+    }
+
+    private String getScope(BuilderContext context) {
+        String branch = StringUtils.defaultIfBlank(context.getEnvironment().get("GIT_BRANCH"), DEFAULT_BRANCH);
+        String appName = StringUtils.defaultIfBlank(context.getEnvVars().get(APP_NAME), "unknown");
+        return sanitize(appName) + "/" + sanitize(branch);
+    }
+
+    private static String sanitize(String value) {
+        return value.replaceAll("[^A-Za-z0-9_.-]", "-");
+    }
+
+    /**
+     * Versions of the local cache of one scope, every build exports into a version of its own. A new version is published by
+     * the pointer file only, so builds still importing from the previous version are never raced by the swap. A version is
+     * deleted once it is neither the current one, imported nor being exported
+     */
+    private static class LocalCacheVersions {
+
+        private final FilePath dir;
+
+        /**
+         * builds importing from a version, keyed by the version
+         */
+        private final Map<String, Integer> readers = new HashMap<>();
+
+        private final Set<String> writing = new HashSet<>();
+
+        private LocalCacheVersions(FilePath dir) {
+            this.dir = dir;
+        }
+
+        private FilePath getDir() {
+            return dir;
+        }
+
+        /**
+         * @return the version to import from, null if there is none yet
+         */
+        @CheckForNull
+        private synchronized String acquire(String exportVersion) throws IOException, InterruptedException {
+            writing.add(exportVersion);
+            String current = getCurrent();
+            if (current != null) {
+                readers.merge(current, 1, Integer::sum);
+            }
+            return current;
+        }
+
+        private synchronized void publish(String version) throws IOException, InterruptedException {
+            if (!dir.child(version).exists()) {
+                return;
+            }
+            FilePath pointer = dir.child(CURRENT_VERSION_FILE + ".tmp");
+            pointer.write(version, StandardCharsets.UTF_8.name());
+            pointer.renameTo(dir.child(CURRENT_VERSION_FILE));
+        }
+
+        private synchronized void release(@CheckForNull String importVersion, String exportVersion) throws IOException, InterruptedException {
+            writing.remove(exportVersion);
+            if (importVersion != null) {
+                readers.computeIfPresent(importVersion, (version, count) -> count == 1 ? null : count - 1);
+            }
+            if (!dir.exists()) {
+                return;
+            }
+            String current = getCurrent();
+            for (FilePath child : dir.listDirectories()) {
+                String version = child.getName();
+                if (version.startsWith(VERSION_PREFIX) && !version.equals(current) && !readers.containsKey(version) && !writing.contains(version)) {
+                    child.deleteRecursive();
+                }
+            }
+            if (current != null) {
+                for (String entry : UNVERSIONED_ENTRIES) {
+                    dir.child(entry).deleteRecursive();
+                }
+            }
+        }
+
+        @CheckForNull
+        private String getCurrent() throws IOException, InterruptedException {
+            FilePath pointer = dir.child(CURRENT_VERSION_FILE);
+            if (!pointer.exists()) {
+                return null;
+            }
+            String current = StringUtils.trimToNull(pointer.readToString());
+            return current != null && dir.child(current).isDirectory() ? current : null;
+        }
+
+    }
+
+    /**
+     * Counts the steps and cached steps from the plain progress output of buildx
+     */
+    static class CacheStatistics extends OutputStream {
+
+        private static final Pattern STEP = Pattern.compile("^#(\\d+) \\[(?:[\\w.-]+ )?\\d+/\\d+]");
+
+        private static final Pattern CACHED = Pattern.compile("^#(\\d+) CACHED");
+
+        private final Set<String> steps = new HashSet<>();
+
+        private final Set<String> cached = new HashSet<>();
+
+        private final StringBuilder line = new StringBuilder();
+
+        @Override
+        public void write(int b) {
+            if (b != '\n') {
+                line.append((char) b);
+                return;
+            }
+            Matcher step = STEP.matcher(line);
+            if (step.find()) {
+                steps.add(step.group(1));
+            }
+            Matcher hit = CACHED.matcher(line);
+            if (hit.find()) {
+                cached.add(hit.group(1));
+            }
+            line.setLength(0);
+        }
+
+        int getSteps() {
+            return steps.size();
+        }
+
+        int getCached() {
+            cached.retainAll(steps);
+            return cached.size();
+        }
+
+        long getHitRate() {
+            return steps.isEmpty() ? 0 : Math.round(getCached() * 100.0 / steps.size());
+        }
+
+    }
+
+}
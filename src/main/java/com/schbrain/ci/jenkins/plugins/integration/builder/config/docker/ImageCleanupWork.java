@@ -0,0 +1,253 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.docker;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes built images and prunes the image cache of every agent in the background, so builds do not hold their executor for it.
+ * <p>
+ * Images queued by builds are removed in one batch per agent. The image cache is only pruned when the disk of the docker root dir
+ * or the number of images crosses its threshold, base images used by recent builds are kept.
+ *
+ * @author liaozan
+ * @since 2022/4/25
+ */
+@Extension
+@SuppressWarnings("unused")
+public class ImageCleanupWork extends AsyncPeriodicWork {
+
+    private static final long RECURRENCE_PERIOD = SystemProperties.getLong(ImageCleanupWork.class.getName() + ".recurrencePeriod", TimeUnit.MINUTES.toMillis(1));
+
+    private static final int MAX_DISK_USAGE_PERCENT = SystemProperties.getInteger(ImageCleanupWork.class.getName() + ".maxDiskUsagePercent", 80);
+
+    private static final int MAX_IMAGE_COUNT = SystemProperties.getInteger(ImageCleanupWork.class.getName() + ".maxImageCount", 200);
+
+    /**
+     * images removed at once while the disk is over its threshold, the disk usage is checked again after every batch
+     */
+    private static final int PRUNE_BATCH_SIZE = SystemProperties.getInteger(ImageCleanupWork.class.getName() + ".pruneBatchSize", 10);
+
+    private static final long HOT_BASE_IMAGE_PERIOD = SystemProperties.getLong(ImageCleanupWork.class.getName() + ".hotBaseImagePeriod", TimeUnit.DAYS.toMillis(7));
+
+    /**
+     * images to remove, keyed by node name. A queue is only changed inside {@code compute} and drained by {@code remove},
+     * both atomic per node, so an image queued while the queue is drained lands either in the drained queue or in a new one
+     */
+    private static final Map<String, Set<String>> PENDING_REMOVALS = new ConcurrentHashMap<>();
+
+    /**
+     * base images and when they were used last, keyed by node name
+     */
+    private static final Map<String, Map<String, Long>> HOT_BASE_IMAGES = new ConcurrentHashMap<>();
+
+    private static final Set<String> PRUNE_REQUESTS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * images of running builds, never removed by a prune
+     */
+    private static final Set<String> IN_USE = ConcurrentHashMap.newKeySet();
+
+    public ImageCleanupWork() {
+        super("Integration image cleanup");
+    }
+
+    public static void enqueueRemoval(String nodeName, String imageName) {
+        PENDING_REMOVALS.compute(nodeName, (key, queued) -> {
+            Set<String> images = queued == null ? new HashSet<>() : queued;
+            images.add(imageName);
+            return images;
+        });
+    }
+
+    /**
+     * Check the image cache of the node on the next run, it is pruned only if a threshold is crossed
+     */
+    public static void requestPrune(String nodeName) {
+        PRUNE_REQUESTS.add(nodeName);
+    }
+
+    public static void markInUse(String imageName) {
+        IN_USE.add(imageName);
+    }
+
+    public static void release(String imageName) {
+        IN_USE.remove(imageName);
+    }
+
+    public static void markHotBaseImage(String nodeName, String baseImage) {
+        HOT_BASE_IMAGES.computeIfAbsent(nodeName, key -> new ConcurrentHashMap<>()).put(baseImage, System.currentTimeMillis());
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Set<String> nodeNames = new HashSet<>(PENDING_REMOVALS.keySet());
+        nodeNames.addAll(PRUNE_REQUESTS);
+        for (String nodeName : nodeNames) {
+            Node node = getNode(nodeName);
+            if (node == null || node.toComputer() == null || node.toComputer().isOffline()) {
+                // keep the queue until the node is back
+                continue;
+            }
+            Launcher launcher = node.createLauncher(listener);
+            try {
+                removeQueuedImages(nodeName, launcher, listener);
+                if (PRUNE_REQUESTS.remove(nodeName)) {
+                    pruneIfUnderPressure(nodeName, node, launcher, listener);
+                }
+            } catch (IOException e) {
+                listener.error("failed to clean up images on %s: %s", StringUtils.defaultIfEmpty(nodeName, "built-in"), e.getMessage());
+            }
+        }
+    }
+
+    private void removeQueuedImages(String nodeName, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        Set<String> queued = PENDING_REMOVALS.remove(nodeName);
+        if (queued == null || queued.isEmpty()) {
+            return;
+        }
+        removeImages(new ArrayList<>(queued), launcher, listener);
+    }
+
+    /**
+     * Remove unused images, the least recently created first, only until the node is back under both thresholds
+     */
+    private void pruneIfUnderPressure(String nodeName, Node node, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        // dangling images are never worth keeping
+        run(launcher, listener, "docker", "image", "prune", "-f");
+
+        Set<String> hotBaseImages = getHotBaseImages(nodeName);
+        // images which could not be removed, e.g. used by a container, are not tried twice
+        Set<String> attempted = new HashSet<>();
+        while (true) {
+            List<String> imageNames = listImagesOldestFirst(launcher, listener);
+            int diskUsage = getDiskUsagePercent(node, launcher, listener);
+            if (imageNames.size() <= MAX_IMAGE_COUNT && diskUsage <= MAX_DISK_USAGE_PERCENT) {
+                return;
+            }
+            listener.getLogger().printf("%s: %s images, %s%% disk used, prune unused images%n", StringUtils.defaultIfEmpty(nodeName, "built-in"), imageNames.size(), diskUsage);
+
+            int batchSize = Math.max(imageNames.size() - MAX_IMAGE_COUNT, diskUsage > MAX_DISK_USAGE_PERCENT ? PRUNE_BATCH_SIZE : 0);
+            List<String> batch = new ArrayList<>();
+            for (String imageName : imageNames) {
+                if (batch.size() >= batchSize) {
+                    break;
+                }
+                if (isRemovable(imageName, hotBaseImages) && attempted.add(imageName)) {
+                    batch.add(imageName);
+                }
+            }
+            if (batch.isEmpty()) {
+                // everything left is in use
+                return;
+            }
+            removeImages(batch, launcher, listener);
+        }
+    }
+
+    private boolean isRemovable(String imageName, Set<String> hotBaseImages) {
+        return !imageName.contains("<none>") && !IN_USE.contains(imageName) && !hotBaseImages.contains(imageName) && !hotBaseImages.contains(StringUtils.removeEnd(imageName, ":latest"));
+    }
+
+    /**
+     * @return the images of the node, the least recently created first
+     */
+    private List<String> listImagesOldestFirst(Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        String images = run(launcher, listener, "docker", "images", "--format", "{{.Repository}}:{{.Tag}}\t{{.CreatedAt}}");
+        if (images == null) {
+            return Collections.emptyList();
+        }
+        // lines, not names, untagged images all share the name <none>:<none> but still count
+        List<String> lines = Arrays.asList(StringUtils.split(images, '\n'));
+        Map<String, Long> createdAt = new HashMap<>();
+        for (String line : lines) {
+            createdAt.put(line, parseCreatedAt(StringUtils.substringAfter(line, "\t").trim()));
+        }
+        List<String> imageNames = new ArrayList<>(lines.size());
+        lines.stream().sorted(Comparator.comparing(createdAt::get)).forEach(line -> imageNames.add(StringUtils.substringBefore(line, "\t").trim()));
+        return imageNames;
+    }
+
+    /**
+     * @param createdAt like {@code 2022-04-25 10:11:12 +0800 CST}
+     * @return the time in millis, unknown times count as the newest so those images are removed last
+     */
+    private static long parseCreatedAt(String createdAt) {
+        try {
+            // the trailing zone name is ignored
+            return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z", Locale.ROOT).parse(createdAt).getTime();
+        } catch (ParseException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private Set<String> getHotBaseImages(String nodeName) {
+        Map<String, Long> baseImages = HOT_BASE_IMAGES.getOrDefault(nodeName, Collections.emptyMap());
+        long threshold = System.currentTimeMillis() - HOT_BASE_IMAGE_PERIOD;
+        baseImages.values().removeIf(lastUsed -> lastUsed < threshold);
+        return new HashSet<>(baseImages.keySet());
+    }
+
+    private int getDiskUsagePercent(Node node, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        String dockerRootDir = run(launcher, listener, "docker", "info", "--format", "{{.DockerRootDir}}");
+        FilePath rootPath = node.getRootPath();
+        if (StringUtils.isBlank(dockerRootDir) || rootPath == null) {
+            return 0;
+        }
+        // the docker root dir is usually not readable, use the closest readable parent on the same disk
+        FilePath dir = new FilePath(rootPath.getChannel(), dockerRootDir);
+        while (dir != null && dir.getTotalDiskSpace() == 0) {
+            dir = dir.getParent();
+        }
+        if (dir == null) {
+            return 0;
+        }
+        long total = dir.getTotalDiskSpace();
+        return (int) ((total - dir.getUsableDiskSpace()) * 100 / total);
+    }
+
+    private void removeImages(List<String> imageNames, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        if (imageNames.isEmpty()) {
+            return;
+        }
+        List<String> command = new ArrayList<>(Arrays.asList("docker", "rmi", "-f"));
+        command.addAll(imageNames);
+        // images still used by containers can not be removed, that is fine
+        launcher.launch().cmds(command).stdout(listener).join();
+    }
+
+    @CheckForNull
+    private String run(Launcher launcher, TaskListener listener, String... command) throws IOException, InterruptedException {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        int exitCode = launcher.launch().cmds(command).stdout(stdout).stderr(listener.getLogger()).quiet(true).join();
+        return exitCode == 0 ? stdout.toString(StandardCharsets.UTF_8.name()).trim() : null;
+    }
+
+    @CheckForNull
+    private static Node getNode(String nodeName) {
+        Jenkins jenkins = Jenkins.get();
+        return StringUtils.isEmpty(nodeName) ? jenkins : jenkins.getNode(nodeName);
+    }
+
+}
@@ -0,0 +1,415 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.docker;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
+import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fingerprint of everything that goes into an image: the rendered Dockerfile, the files it copies from the build context,
+ * {@code JAVA_OPTS} and the base images.
+ * <p>
+ * Built images are labeled with their fingerprint, and the fingerprint of every built image is kept in a local index,
+ * so an image with identical inputs can be re-tagged instead of rebuilt.
+ *
+ * @author liaozan
+ * @since 2022/4/20
+ */
+public class ImageFingerprint {
+
+    public static final String LABEL = "com.schbrain.integration.fingerprint";
+
+    private static final String SCRATCH = "scratch";
+
+    private static final String DOCKER_IGNORE_FILE = ".dockerignore";
+
+    /**
+     * The base images are pulled into the local image store, a classic build of the fingerprinted inputs must not pull them again.
+     * A buildx builder keeps its own store, so for BuildKit only the digests of the base images are resolved from the registry
+     *
+     * @return the fingerprint, or null if some input could not be resolved or may change without the Dockerfile changing
+     */
+    @CheckForNull
+    public static String compute(BuilderContext context, String content, String javaOpts, boolean buildKit) throws IOException, InterruptedException {
+        Instructions instructions = Instructions.parse(content);
+        if (!instructions.remoteSources.isEmpty()) {
+            // the content behind a URL is only known to the build, the image is never reused
+            context.log("Dockerfile adds remote sources %s, skip image reuse", String.join(", ", instructions.remoteSources));
+            return null;
+        }
+
+        StringBuilder inputs = new StringBuilder();
+        inputs.append("dockerfile:").append(DigestUtils.sha256Hex(content)).append('\n');
+        inputs.append("javaOpts:").append(StringUtils.defaultString(javaOpts)).append('\n');
+        for (String baseImage : instructions.baseImages) {
+            String imageId = buildKit ? resolveDigest(context, baseImage) : pull(context, baseImage);
+            if (StringUtils.isBlank(imageId)) {
+                return null;
+            }
+            inputs.append("from:").append(baseImage).append('@').append(imageId).append('\n');
+        }
+        inputs.append("context:").append(context.getWorkspace().act(new HashSourcesCallable(instructions.sources)));
+        return DigestUtils.sha256Hex(inputs.toString());
+    }
+
+    /**
+     * Same as {@code --pull} of the build, make sure the base image is up to date before taking its id
+     */
+    @CheckForNull
+    private static String pull(BuilderContext context, String baseImage) throws IOException, InterruptedException {
+        if (context.executeForOutput("docker", "pull", "-q", baseImage) == null) {
+            return null;
+        }
+        ImageCleanupWork.markHotBaseImage(context.getNodeName(), baseImage);
+        return context.executeForOutput("docker", "image", "inspect", "--format", "{{.Id}}", baseImage);
+    }
+
+    /**
+     * @return the digest of the manifest of the base image in its registry, no layer is downloaded
+     */
+    @CheckForNull
+    private static String resolveDigest(BuilderContext context, String baseImage) throws IOException, InterruptedException {
+        String output = context.executeForOutput("docker", "buildx", "imagetools", "inspect", baseImage);
+        if (output == null) {
+            return null;
+        }
+        for (String line : output.split("\n")) {
+            if (line.startsWith("Digest:")) {
+                return line.substring("Digest:".length()).trim();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tag an existing image with identical inputs as imageName
+     *
+     * @return true if such an image was found and tagged
+     */
+    public static boolean reuse(BuilderContext context, String fingerprint, String imageName) throws IOException, InterruptedException {
+        String localImages = context.executeForOutput("docker", "images", "-q", "--no-trunc", "--filter", "label=" + LABEL + "=" + fingerprint);
+        String localImage = StringUtils.isBlank(localImages) ? null : localImages.split("\\s+")[0];
+        if (localImage == null) {
+            String pushedImage = lookupIndex(fingerprint);
+            if (pushedImage == null || context.executeForOutput("docker", "pull", "-q", pushedImage) == null) {
+                return false;
+            }
+            localImage = pushedImage;
+        }
+        context.log("image with identical inputs found: %s, skip docker build", localImage);
+        context.execute(String.format("docker tag %s %s", localImage, imageName));
+        return true;
+    }
+
+    public static synchronized void remember(String fingerprint, String imageName) throws IOException {
+        Properties index = loadIndex();
+        index.setProperty(fingerprint, imageName);
+        File indexFile = FileManager.getImageFingerprintIndexFile();
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            index.store(writer, null);
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @CheckForNull
+    private static synchronized String lookupIndex(String fingerprint) throws IOException {
+        return loadIndex().getProperty(fingerprint);
+    }
+
+    private static Properties loadIndex() throws IOException {
+        Properties index = new Properties();
+        File indexFile = FileManager.getImageFingerprintIndexFile();
+        if (indexFile.exists()) {
+            try (Reader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                index.load(reader);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * The parts of a Dockerfile that decide which inputs an image has
+     */
+    static class Instructions {
+
+        final List<String> baseImages = new ArrayList<>();
+
+        final List<String> sources = new ArrayList<>();
+
+        final List<String> remoteSources = new ArrayList<>();
+
+        static Instructions parse(String content) {
+            Instructions instructions = new Instructions();
+            Set<String> stageNames = new HashSet<>();
+            for (String line : joinContinuations(content)) {
+                List<String> tokens = tokenize(line);
+                if (tokens.isEmpty()) {
+                    continue;
+                }
+                String instruction = tokens.get(0).toUpperCase(Locale.ROOT);
+                List<String> arguments = tokens.subList(1, tokens.size()).stream().filter(token -> !token.startsWith("--")).collect(Collectors.toList());
+                boolean fromStage = tokens.stream().anyMatch(token -> token.startsWith("--from="));
+                if ("FROM".equals(instruction) && !arguments.isEmpty()) {
+                    String image = arguments.get(0);
+                    if (!stageNames.contains(image) && !SCRATCH.equals(image)) {
+                        instructions.baseImages.add(image);
+                    }
+                    if (arguments.size() >= 3 && "AS".equalsIgnoreCase(arguments.get(1))) {
+                        stageNames.add(arguments.get(2));
+                    }
+                } else if (("COPY".equals(instruction) || "ADD".equals(instruction)) && !fromStage && arguments.size() >= 2) {
+                    for (String source : arguments.subList(0, arguments.size() - 1)) {
+                        if (source.contains("://") || source.startsWith("git@")) {
+                            instructions.remoteSources.add(source);
+                        } else {
+                            instructions.sources.add(source);
+                        }
+                    }
+                }
+            }
+            return instructions;
+        }
+
+        private static List<String> joinContinuations(String content) {
+            List<String> lines = new ArrayList<>();
+            StringBuilder current = new StringBuilder();
+            for (String line : content.split("\\r?\\n")) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith("#")) {
+                    continue;
+                }
+                if (trimmed.endsWith("\\")) {
+                    current.append(trimmed, 0, trimmed.length() - 1).append(' ');
+                    continue;
+                }
+                current.append(trimmed);
+                lines.add(current.toString());
+                current.setLength(0);
+            }
+            if (current.length() > 0) {
+                lines.add(current.toString());
+            }
+            return lines;
+        }
+
+        private static List<String> tokenize(String line) {
+            String trimmed = line.trim();
+            int split = trimmed.indexOf(' ');
+            if (split < 0) {
+                return trimmed.isEmpty() ? Collections.emptyList() : Collections.singletonList(trimmed);
+            }
+            List<String> tokens = new ArrayList<>();
+            tokens.add(trimmed.substring(0, split));
+            String arguments = trimmed.substring(split + 1).trim();
+            if (arguments.startsWith("[")) {
+                // exec form: ["src", "dest"]
+                for (String token : arguments.substring(1, arguments.lastIndexOf(']') < 0 ? arguments.length() : arguments.lastIndexOf(']')).split(",")) {
+                    String unquoted = StringUtils.strip(token.trim(), "\"");
+                    if (!unquoted.isEmpty()) {
+                        tokens.add(unquoted);
+                    }
+                }
+            } else {
+                tokens.addAll(Arrays.asList(arguments.split("\\s+")));
+            }
+            return tokens;
+        }
+
+    }
+
+    /**
+     * Hash the files matched by the COPY/ADD sources, relative to the build context. Files excluded by the
+     * {@code .dockerignore} of the build context are never sent to the daemon, so they are not hashed either
+     */
+    static class HashSourcesCallable extends MasterToSlaveFileCallable<String> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<String> sources;
+
+        HashSourcesCallable(List<String> sources) {
+            this.sources = new ArrayList<>(sources);
+        }
+
+        @Override
+        public String invoke(File root, VirtualChannel channel) throws IOException {
+            Path rootPath = root.toPath();
+            DockerIgnore dockerIgnore = DockerIgnore.load(rootPath.resolve(DOCKER_IGNORE_FILE));
+            SortedSet<Path> files = new TreeSet<>();
+            for (String source : sources) {
+                for (Path file : match(rootPath, source)) {
+                    if (!dockerIgnore.isIgnored(rootPath.relativize(file).toString().replace(File.separatorChar, '/'))) {
+                        files.add(file);
+                    }
+                }
+            }
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            byte[] buffer = new byte[64 * 1024];
+            for (Path file : files) {
+                digest.update(rootPath.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                try (InputStream input = Files.newInputStream(file)) {
+                    int read;
+                    while ((read = input.read(buffer)) > 0) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+            return Hex.encodeHexString(digest.digest());
+        }
+
+        private List<Path> match(Path root, String source) throws IOException {
+            String normalized = StringUtils.removeStart(source, "./");
+            if (!normalized.contains("*") && !normalized.contains("?")) {
+                Path path = root.resolve(normalized).normalize();
+                if (!Files.exists(path)) {
+                    return Collections.emptyList();
+                }
+                try (Stream<Path> walk = Files.walk(path)) {
+                    return walk.filter(Files::isRegularFile).collect(Collectors.toList());
+                }
+            }
+            PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + normalized);
+            List<Path> matched = new ArrayList<>();
+            // only walk below the part of the pattern without wildcards
+            Path walkRoot = root;
+            for (String segment : normalized.split("/")) {
+                if (segment.contains("*") || segment.contains("?")) {
+                    break;
+                }
+                walkRoot = walkRoot.resolve(segment);
+            }
+            if (!Files.isDirectory(walkRoot)) {
+                return matched;
+            }
+            try (Stream<Path> walk = Files.walk(walkRoot)) {
+                for (Path path : (Iterable<Path>) walk::iterator) {
+                    if (matcher.matches(root.relativize(path))) {
+                        if (Files.isDirectory(path)) {
+                            try (Stream<Path> nested = Files.walk(path)) {
+                                nested.filter(Files::isRegularFile).forEach(matched::add);
+                            }
+                        } else if (Files.isRegularFile(path)) {
+                            matched.add(path);
+                        }
+                    }
+                }
+            }
+            return matched;
+        }
+
+    }
+
+    /**
+     * Patterns of a {@code .dockerignore} file, matched the way docker does: {@code *} and {@code ?} stay within one path
+     * segment, {@code **} matches any number of segments, a pattern also excludes everything below a matched dir, and
+     * {@code !} re-includes what an earlier pattern excluded, the last matching pattern wins
+     */
+    static class DockerIgnore {
+
+        private final List<Pattern> patterns = new ArrayList<>();
+
+        private final List<Boolean> exclusions = new ArrayList<>();
+
+        DockerIgnore(List<String> lines) {
+            for (String line : lines) {
+                String pattern = line.trim();
+                if (pattern.isEmpty() || pattern.startsWith("#")) {
+                    continue;
+                }
+                boolean exclusion = pattern.startsWith("!");
+                if (exclusion) {
+                    pattern = pattern.substring(1).trim();
+                }
+                pattern = StringUtils.removeEnd(StringUtils.removeStart(StringUtils.removeStart(pattern, "/"), "./"), "/");
+                if (pattern.isEmpty()) {
+                    continue;
+                }
+                patterns.add(Pattern.compile(toRegex(pattern)));
+                exclusions.add(exclusion);
+            }
+        }
+
+        static DockerIgnore load(Path file) throws IOException {
+            if (!Files.isRegularFile(file)) {
+                return new DockerIgnore(Collections.emptyList());
+            }
+            return new DockerIgnore(Files.readAllLines(file, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @param path relative to the build context, separated by {@code /}
+         */
+        boolean isIgnored(String path) {
+            boolean ignored = false;
+            for (int i = 0; i < patterns.size(); i++) {
+                if (matchesOrParentMatches(patterns.get(i), path)) {
+                    ignored = !exclusions.get(i);
+                }
+            }
+            return ignored;
+        }
+
+        private static boolean matchesOrParentMatches(Pattern pattern, String path) {
+            if (pattern.matcher(path).matches()) {
+                return true;
+            }
+            for (int separator = path.lastIndexOf('/'); separator > 0; separator = path.lastIndexOf('/', separator - 1)) {
+                if (pattern.matcher(path.substring(0, separator)).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String toRegex(String pattern) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '/') {
+                        // **/ also matches no dir at all
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[') {
+                    int end = pattern.indexOf(']', i + 1);
+                    if (end < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String range = pattern.substring(i + 1, end);
+                        regex.append('[').append(range.startsWith("^") || range.startsWith("!") ? "^" + range.substring(1) : range).append(']');
+                        i = end;
+                    }
+                } else if (c == '\\' && i + 1 < pattern.length()) {
+                    regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return regex.toString();
+        }
+
+    }
+
+}
\ No newline at end of file
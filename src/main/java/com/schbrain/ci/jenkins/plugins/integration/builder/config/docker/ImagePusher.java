@@ -0,0 +1,183 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.docker;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
+import com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants;
+import com.schbrain.ci.jenkins.plugins.integration.builder.stage.StageOutputStream;
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.FileUtils;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.StreamBuildListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pushes the tags of an image to their registries concurrently, every push is retried with an exponential backoff.
+ * <p>
+ * The digest reported by every registry is recorded with the build, the push fails if the registries do not agree on it,
+ * so all of them are known to serve the same content.
+ *
+ * @author liaozan
+ * @since 2022/5/4
+ */
+public class ImagePusher {
+
+    private static final int MAX_PARALLELISM = SystemProperties.getInteger(ImagePusher.class.getName() + ".maxParallelism", 3);
+
+    private static final int MAX_ATTEMPTS = SystemProperties.getInteger(ImagePusher.class.getName() + ".maxAttempts", 3);
+
+    private static final long INITIAL_BACKOFF = SystemProperties.getLong(ImagePusher.class.getName() + ".initialBackoff", TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * the last line of {@code docker push}: {@code <tag>: digest: sha256:<hex> size: <bytes>}
+     */
+    private static final Pattern DIGEST = Pattern.compile("digest: (sha256:[0-9a-f]{64})");
+
+    /**
+     * Push the images, all of them must be tags of the same local image
+     *
+     * @return the digest the images share
+     * @throws IllegalStateException if the push failed on any image or the digests differ, after all pushes are finished
+     */
+    public static String push(BuilderContext context, List<String> images) throws Exception {
+        Map<String, String> digests = new LinkedHashMap<>();
+        if (images.size() == 1) {
+            String image = images.get(0);
+            digests.put(image, pushWithRetry(context, image).digest);
+        } else {
+            digests.putAll(pushConcurrently(context, images));
+        }
+
+        Set<String> distinctDigests = new HashSet<>(digests.values());
+        if (distinctDigests.size() > 1) {
+            throw new IllegalStateException(String.format("registries report different digests: %s", digests));
+        }
+        String digest = digests.values().iterator().next();
+        record(context, digests);
+        context.getEnvVars().put(DockerConstants.IMAGE_DIGEST, digest);
+        return digest;
+    }
+
+    private static Map<String, String> pushConcurrently(BuilderContext context, List<String> images) throws InterruptedException, IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_PARALLELISM, images.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), ImagePusher.class.getSimpleName()));
+        Map<String, StageOutputStream> outputs = new LinkedHashMap<>();
+        Map<String, Future<Pushed>> results = new LinkedHashMap<>();
+        try {
+            for (String image : images) {
+                StageOutputStream output = new StageOutputStream(context.getStageName() + ":" + getRegistry(image), context.getListener().getLogger());
+                BuilderContext imageContext = context.forStage(context.getStageName(), new StreamBuildListener(output, StandardCharsets.UTF_8));
+                outputs.put(image, output);
+                results.put(image, executor.submit(() -> pushWithRetry(imageContext, image)));
+            }
+            return reportResults(context, outputs, results);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Map<String, String> reportResults(BuilderContext context, Map<String, StageOutputStream> outputs, Map<String, Future<Pushed>> results) throws InterruptedException, IOException {
+        Map<String, String> digests = new LinkedHashMap<>();
+        List<String> failedImages = new ArrayList<>();
+        List<String> summary = new ArrayList<>();
+        for (Map.Entry<String, Future<Pushed>> result : results.entrySet()) {
+            String image = result.getKey();
+            try {
+                Pushed pushed = result.getValue().get();
+                digests.put(image, pushed.digest);
+                summary.add(String.format("%s: %s in %sms, %s attempt(s)", image, pushed.digest, pushed.durationMillis, pushed.attempts));
+            } catch (ExecutionException e) {
+                failedImages.add(image);
+                summary.add(String.format("%s: failed, %s", image, e.getCause().getMessage()));
+            } finally {
+                // the output of the pushes in the declared order
+                outputs.get(image).attach();
+            }
+        }
+        context.log("push finished on %s of %s registries", digests.size(), results.size());
+        for (String line : summary) {
+            context.log("  %s", line);
+        }
+        if (!failedImages.isEmpty()) {
+            throw new IllegalStateException(String.format("push failed on %s", String.join(", ", failedImages)));
+        }
+        return digests;
+    }
+
+    private static Pushed pushWithRetry(BuilderContext context, String image) throws IOException, InterruptedException {
+        long startedAt = System.nanoTime();
+        long backoff = INITIAL_BACKOFF;
+        for (int attempt = 1; ; attempt++) {
+            context.log("docker push %s", image);
+            // the progress goes to the console of the stage, the digest is parsed from the same output
+            String output = context.executeForOutput(true, "docker", "push", image);
+            if (output != null) {
+                String digest = parseDigest(output);
+                if (digest == null) {
+                    throw new IllegalStateException(String.format("no digest in the output of docker push %s", image));
+                }
+                context.log("pushed %s, digest: %s", image, digest);
+                return new Pushed(digest, attempt, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            }
+            if (attempt >= MAX_ATTEMPTS) {
+                throw new IllegalStateException(String.format("docker push %s failed after %s attempts", image, attempt));
+            }
+            // jitter keeps the retries of concurrent builds apart
+            long delay = backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            context.log("docker push %s failed, retry in %sms (%s/%s)", image, delay, attempt, MAX_ATTEMPTS);
+            Thread.sleep(delay);
+            backoff *= 2;
+        }
+    }
+
+    @CheckForNull
+    static String parseDigest(String output) {
+        String digest = null;
+        Matcher matcher = DIGEST.matcher(output);
+        while (matcher.find()) {
+            digest = matcher.group(1);
+        }
+        return digest;
+    }
+
+    /**
+     * Keep the digest of every pushed image with the build
+     */
+    private static void record(BuilderContext context, Map<String, String> digests) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(digests);
+        StringWriter content = new StringWriter();
+        properties.store(content, null);
+        FileUtils.writeUtf8String(content.toString(), new File(context.getBuildScriptDir(), DockerConstants.IMAGE_DIGESTS_FILE_NAME));
+    }
+
+    private static String getRegistry(String image) {
+        return StringUtils.substringBeforeLast(image, "/");
+    }
+
+    private static class Pushed {
+
+        private final String digest;
+
+        private final int attempts;
+
+        private final long durationMillis;
+
+        private Pushed(String digest, int attempts, long durationMillis) {
+            this.digest = digest;
+            this.attempts = attempts;
+            this.durationMillis = durationMillis;
+        }
+
+    }
+
+}
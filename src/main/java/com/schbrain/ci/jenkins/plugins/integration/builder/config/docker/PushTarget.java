@@ -0,0 +1,34 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.docker;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * A registry or mirror the image is pushed to in addition to the registry it is built for
+ *
+ * @author liaozan
+ * @since 2022/5/4
+ */
+@SuppressWarnings("unused")
+public class PushTarget extends AbstractDescribableImpl<PushTarget> {
+
+    private final String registry;
+
+    @DataBoundConstructor
+    public PushTarget(String registry) {
+        this.registry = Util.fixNull(registry).trim();
+    }
+
+    public String getRegistry() {
+        return registry;
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<PushTarget> {
+
+    }
+
+}
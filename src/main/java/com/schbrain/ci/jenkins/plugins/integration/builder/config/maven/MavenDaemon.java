@@ -0,0 +1,129 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.maven;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Routes maven builds to the long living daemons of mvnd, so a build does not pay for JVM startup, plugin classloading and a cold JIT.
+ * <p>
+ * mvnd itself starts a new daemon whenever all compatible ones are busy, the pool of every agent and JDK is therefore bounded here,
+ * builds which find the pool exhausted run on a fresh JVM as before. Daemons of different JDKs are never shared, mvnd only reuses
+ * a daemon of the same java home, and idle ones stop themselves after the idle timeout.
+ *
+ * @author liaozan
+ * @since 2022/4/29
+ */
+public class MavenDaemon {
+
+    private static final String EXECUTABLE = SystemProperties.getString(MavenDaemon.class.getName() + ".executable", "mvnd");
+
+    private static final int POOL_SIZE = SystemProperties.getInteger(MavenDaemon.class.getName() + ".poolSize", 2);
+
+    private static final String IDLE_TIMEOUT = SystemProperties.getString(MavenDaemon.class.getName() + ".idleTimeout", "1h");
+
+    private static final int MAX_TRACKED_JOBS = 256;
+
+    /**
+     * only the leading {@code mvn} is replaced, wrappers like {@code mvnw} are left alone
+     */
+    private static final Pattern MAVEN_EXECUTABLE = Pattern.compile("^\\s*(\\S*/)?mvn(?=\\s|$)");
+
+    /**
+     * the daemon outlives the build, keep the process tree killer of jenkins away from it
+     */
+    private static final String KEEP_ALIVE = "BUILD_ID=dontKillMe JENKINS_NODE_COOKIE=dontKillMe";
+
+    private static final Map<String, Semaphore> POOLS = new ConcurrentHashMap<>();
+
+    /**
+     * average duration of the builds of a job on a fresh JVM, the baseline the daemon builds are compared with
+     */
+    private static final Map<String, Long> COLD_DURATIONS = Collections.synchronizedMap(new LinkedHashMap<String, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_JOBS;
+        }
+    });
+
+    /**
+     * @return the command run by mvnd, or null if the command does not start with {@code mvn}
+     */
+    @CheckForNull
+    public static String toDaemonCommand(String mavenCommand, String javaHome) {
+        Matcher matcher = MAVEN_EXECUTABLE.matcher(mavenCommand);
+        if (!matcher.find()) {
+            return null;
+        }
+        StringBuilder options = new StringBuilder(" -Dmvnd.idleTimeout=").append(IDLE_TIMEOUT);
+        if (StringUtils.isNotBlank(javaHome)) {
+            options.append(" -Dmvnd.javaHome=").append(javaHome);
+        }
+        return KEEP_ALIVE + " " + EXECUTABLE + options + mavenCommand.substring(matcher.end());
+    }
+
+    /**
+     * Take a daemon of the pool of the agent and JDK, must be closed once the build is finished
+     *
+     * @return null if all daemons of the pool are busy
+     */
+    @CheckForNull
+    public static Lease acquire(String nodeName, String javaHome) {
+        Semaphore pool = POOLS.computeIfAbsent(getPoolKey(nodeName, javaHome), key -> new Semaphore(POOL_SIZE));
+        return pool.tryAcquire() ? new Lease(pool) : null;
+    }
+
+    public static int getPoolSize() {
+        return POOL_SIZE;
+    }
+
+    /**
+     * Record the duration of a successful maven build on a fresh JVM
+     */
+    public static void recordColdDuration(String job, long durationMillis) {
+        // exponential moving average, recent builds count the most
+        COLD_DURATIONS.merge(job, durationMillis, (average, duration) -> (average * 3 + duration) / 4);
+    }
+
+    /**
+     * @return the average duration of the builds of the job on a fresh JVM, -1 if none is known
+     */
+    public static long getColdDuration(String job) {
+        Long duration = COLD_DURATIONS.get(job);
+        return duration == null ? -1 : duration;
+    }
+
+    private static String getPoolKey(String nodeName, String javaHome) {
+        return StringUtils.defaultIfBlank(nodeName, "(built-in)") + ":" + StringUtils.defaultIfBlank(javaHome, "(default)");
+    }
+
+    public static class Lease implements Closeable {
+
+        private final Semaphore pool;
+
+        private boolean released;
+
+        private Lease(Semaphore pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                pool.release();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,209 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.maven;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Modules of a maven reactor, used to map changed paths to the modules that need to be built.
+ *
+ * @author liaozan
+ * @since 2022/4/18
+ */
+public class ReactorModules implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String POM_FILE_NAME = "pom.xml";
+
+    /**
+     * module dirs relative to the root, the root itself is not included
+     */
+    private final TreeSet<String> modules = new TreeSet<>();
+
+    /**
+     * poms which affect other modules: the root pom, aggregators and parents
+     */
+    private final HashSet<String> sharedPoms = new HashSet<>();
+
+    private ReactorModules() {
+    }
+
+    /**
+     * Parse the pom tree under root, returns null when root has no pom
+     */
+    @CheckForNull
+    public static ReactorModules parse(FilePath root) throws IOException, InterruptedException {
+        return root.act(new ParseCallable());
+    }
+
+    /**
+     * @return the modules affected by the changed paths, or null if a full build is required
+     */
+    @CheckForNull
+    public Set<String> affectedModules(Collection<String> changedPaths) {
+        if (changedPaths.isEmpty()) {
+            return null;
+        }
+        Set<String> affected = new TreeSet<>();
+        for (String changedPath : changedPaths) {
+            String path = changedPath.replace('\\', '/');
+            if (sharedPoms.contains(path)) {
+                return null;
+            }
+            String module = owningModule(path);
+            if (module == null) {
+                return null;
+            }
+            affected.add(module);
+        }
+        return affected;
+    }
+
+    @CheckForNull
+    private String owningModule(String path) {
+        // modules are sorted, the last matching one is the innermost
+        String owner = null;
+        for (String module : modules) {
+            if (path.startsWith(module + "/")) {
+                owner = module;
+            }
+        }
+        return owner;
+    }
+
+    private static class ParseCallable extends MasterToSlaveFileCallable<ReactorModules> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public ReactorModules invoke(File root, VirtualChannel channel) throws IOException {
+            File rootPom = new File(root, POM_FILE_NAME);
+            if (!rootPom.isFile()) {
+                return null;
+            }
+            ReactorModules reactor = new ReactorModules();
+            reactor.sharedPoms.add(POM_FILE_NAME);
+
+            Path rootPath = root.toPath().toAbsolutePath().normalize();
+            DocumentBuilder documentBuilder = createDocumentBuilder();
+            Deque<Path> pending = new ArrayDeque<>();
+            pending.push(rootPath);
+            while (!pending.isEmpty()) {
+                Path moduleDir = pending.pop();
+                Path pom = moduleDir.resolve(POM_FILE_NAME);
+                if (!pom.toFile().isFile()) {
+                    continue;
+                }
+                Document document;
+                try {
+                    document = documentBuilder.parse(pom.toFile());
+                } catch (Exception e) {
+                    throw new IOException("failed to parse " + pom, e);
+                }
+                Element project = document.getDocumentElement();
+
+                List<String> children = childTexts(project, "modules", "module");
+                if (!children.isEmpty()) {
+                    reactor.sharedPoms.add(relativize(rootPath, pom));
+                }
+                for (String child : children) {
+                    Path childDir = moduleDir.resolve(child).normalize();
+                    if (childDir.toString().endsWith(".xml")) {
+                        childDir = childDir.getParent();
+                    }
+                    if (!childDir.startsWith(rootPath) || childDir.equals(rootPath)) {
+                        continue;
+                    }
+                    if (reactor.modules.add(relativize(rootPath, childDir))) {
+                        pending.push(childDir);
+                    }
+                }
+
+                Element parent = firstChild(project, "parent");
+                if (parent != null) {
+                    String relativePath = text(firstChild(parent, "relativePath"));
+                    Path parentPom = moduleDir.resolve(relativePath == null ? "../" + POM_FILE_NAME : relativePath).normalize();
+                    if (!parentPom.toString().endsWith(".xml")) {
+                        parentPom = parentPom.resolve(POM_FILE_NAME);
+                    }
+                    if (parentPom.startsWith(rootPath) && parentPom.toFile().isFile()) {
+                        reactor.sharedPoms.add(relativize(rootPath, parentPom));
+                    }
+                }
+            }
+            return reactor;
+        }
+
+        private DocumentBuilder createDocumentBuilder() throws IOException {
+            try {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+                return factory.newDocumentBuilder();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+
+        private static String relativize(Path root, Path path) {
+            return root.relativize(path).toString().replace('\\', '/');
+        }
+
+        private static List<String> childTexts(Element element, String container, String name) {
+            List<String> texts = new ArrayList<>();
+            Element containerElement = firstChild(element, container);
+            if (containerElement == null) {
+                return texts;
+            }
+            NodeList nodes = containerElement.getChildNodes();
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Node node = nodes.item(i);
+                if (node instanceof Element && name.equals(node.getNodeName())) {
+                    String text = text((Element) node);
+                    if (text != null) {
+                        texts.add(text);
+                    }
+                }
+            }
+            return texts;
+        }
+
+        @CheckForNull
+        private static Element firstChild(Element element, String name) {
+            NodeList nodes = element.getChildNodes();
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Node node = nodes.item(i);
+                if (node instanceof Element && name.equals(node.getNodeName())) {
+                    return (Element) node;
+                }
+            }
+            return null;
+        }
+
+        @CheckForNull
+        private static String text(@CheckForNull Element element) {
+            if (element == null) {
+                return null;
+            }
+            String text = element.getTextContent().trim();
+            return text.isEmpty() ? null : text;
+        }
+
+    }
+
+}
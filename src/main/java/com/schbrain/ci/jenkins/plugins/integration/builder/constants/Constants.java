@@ -19,7 +19,10 @@ public class Constants {
         public static final String SERVICE_TEMPLATE_FILE_NAME = "k8s-service-template.yaml";
         public static final String DEPLOYMENT_DEPLOY_FILE_NAME = "deployment-deploy.yaml";
         public static final String SERVICE_DEPLOY_FILE_NAME = "service-deploy.yaml";
+        public static final String MANIFEST_FILE_NAME = "k8s-manifest.yaml";
+        public static final String FIELD_MANAGER = "integration-jenkins-plugin";
         public static final String K8S_POD_NAMESPACE = "NAMESPACE";
+        public static final String K8S_TARGET_NAMESPACE = "TARGET_NAMESPACE";
         public static final String K8S_POD_PORT = "PORT";
         public static final String K8S_POD_REPLICAS = "REPLICAS";
         public static final String K8S_POD_MEMORY_LIMIT = "MEMORY_LIMIT";
@@ -37,6 +40,8 @@ public class Constants {
         public static final String BUILD_INFO_FILE_NAME = "dockerBuildInfo";
         public static final String DOCKERFILE_NAME = "Dockerfile";
         public static final String IMAGE = "IMAGE";
+        public static final String IMAGE_DIGEST = "IMAGE_DIGEST";
+        public static final String IMAGE_DIGESTS_FILE_NAME = "image-digests.properties";
         public static final String REGISTRY = "REGISTRY";
         public static final String APP_NAME = "APP_NAME";
         public static final String VERSION = "VERSION";
@@ -2,15 +2,15 @@ package com.schbrain.ci.jenkins.plugins.integration.builder.env;
 
 import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
 import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
-import com.schbrain.ci.jenkins.plugins.integration.builder.util.FileUtils;
+import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.EnvVars;
 import hudson.Extension;
-import hudson.model.AbstractBuild;
-import hudson.model.BuildVariableContributor;
+import hudson.model.EnvironmentContributor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Map;
 
 /**
  * @author liaozan
@@ -18,33 +18,42 @@ import java.util.Map;
  */
 @Extension
 @SuppressWarnings("unused")
-public class BuildEnvContributor extends BuildVariableContributor {
-
-    private static final String DELIMITER = "=";
+public class BuildEnvContributor extends EnvironmentContributor {
 
     public static void saveEnvVarsToDisk(BuilderContext context) throws IOException {
-        File envVarsFile = FileManager.getEnvVarsFile(context.getBuild());
-        FileUtils.writeUtf8String("", envVarsFile);
-        FileUtils.writeUtf8Map(context.getEnvVars(), envVarsFile, DELIMITER);
+        context.getEnvVarsStore().save(context.getEnvVars());
+    }
+
+    /**
+     * Rewrite the journal to one line per variable, called once the build is finished
+     */
+    public static void compactEnvVars(BuilderContext context) throws IOException {
+        context.getEnvVarsStore().compact();
     }
 
+    /**
+     * Expose the variables to the later steps of the run, freestyle or pipeline, a later execution of the step wins
+     */
     @Override
-    public void buildVariablesFor(AbstractBuild build, Map<String, String> variables) {
-        File envFilePath;
+    public void buildEnvironmentFor(@NonNull Run run, @NonNull EnvVars envs, @NonNull TaskListener listener) {
         try {
-            envFilePath = FileManager.getEnvVarsFile(build);
+            buildEnvironment(FileManager.lookupEnvVarsFiles(run), envs);
         } catch (IOException e) {
-            return;
+            // ignore, the variables are not available
         }
-        EnvVars envVars = new EnvVars();
-        for (String line : FileUtils.readUtf8Lines(envFilePath)) {
-            String[] variablePair = line.split(DELIMITER);
-            // variables may not be split by =
-            if (variablePair.length != 1) {
-                envVars.putIfNotNull(variablePair[0], variablePair[1]);
-            }
+    }
+
+    /**
+     * Read the journals into the env vars, in the order of the executions
+     */
+    public static void buildEnvironment(Iterable<File> envVarsFiles, EnvVars envs) throws IOException {
+        for (File envVarsFile : envVarsFiles) {
+            EnvVarsStore.read(envVarsFile).forEach((key, value) -> {
+                if (key != null && value != null) {
+                    envs.put(key, value);
+                }
+            });
         }
-        variables.putAll(envVars);
     }
 
-}
\ No newline at end of file
+}
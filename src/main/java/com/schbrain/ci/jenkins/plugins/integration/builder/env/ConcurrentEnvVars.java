@@ -0,0 +1,91 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.env;
+
+import hudson.EnvVars;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * {@link EnvVars} that can be shared by stages running at the same time.
+ * <p>
+ * Every access is guarded by the map itself, the views returned by {@link #entrySet()}, {@link #keySet()}
+ * and {@link #values()} are snapshots and do not write through.
+ *
+ * @author liaozan
+ * @since 2022/4/13
+ */
+public class ConcurrentEnvVars extends EnvVars {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public synchronized String get(Object key) {
+        return super.get(key);
+    }
+
+    @Override
+    public synchronized String put(String key, String value) {
+        return super.put(key, value);
+    }
+
+    @Override
+    public synchronized String putIfAbsent(String key, String value) {
+        String existing = super.get(key);
+        if (existing == null) {
+            super.put(key, value);
+        }
+        return existing;
+    }
+
+    @Override
+    public synchronized void putAll(Map<? extends String, ? extends String> map) {
+        super.putAll(map);
+    }
+
+    @Override
+    public synchronized String remove(Object key) {
+        return super.remove(key);
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key) {
+        return super.containsKey(key);
+    }
+
+    @Override
+    public synchronized int size() {
+        return super.size();
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+    }
+
+    @Override
+    public synchronized Set<Map.Entry<String, String>> entrySet() {
+        Set<Map.Entry<String, String>> entries = new LinkedHashSet<>();
+        for (Map.Entry<String, String> entry : super.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized Set<String> keySet() {
+        return new LinkedHashSet<>(super.keySet());
+    }
+
+    @Override
+    public synchronized Collection<String> values() {
+        return new ArrayList<>(super.values());
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super String> action) {
+        for (Map.Entry<String, String> entry : entrySet()) {
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+}
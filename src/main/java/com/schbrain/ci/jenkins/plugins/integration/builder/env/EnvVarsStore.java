@@ -0,0 +1,173 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.env;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.Map.Entry;
+
+/**
+ * Append-only store of the variables of one build.
+ * <p>
+ * Every {@link #save(Map)} appends only the keys changed since the previous save, a key without a delimiter marks a removal.
+ * {@link #compact()} rewrites the journal to one line per key once the build is finished.
+ *
+ * @author liaozan
+ * @since 2022/4/8
+ */
+public class EnvVarsStore {
+
+    private static final char DELIMITER = '=';
+
+    private static final int MAX_CACHED_SNAPSHOTS = 64;
+
+    private static final Map<String, Snapshot> SNAPSHOTS = Collections.synchronizedMap(new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, Snapshot> eldest) {
+            return size() > MAX_CACHED_SNAPSHOTS;
+        }
+
+    });
+
+    private final Path journal;
+
+    private final Map<String, String> persisted;
+
+    public EnvVarsStore(File journal) throws IOException {
+        this.journal = journal.toPath();
+        this.persisted = new LinkedHashMap<>(parse(this.journal));
+    }
+
+    /**
+     * Read the variables of the given journal, served from memory as long as the file is not changed
+     */
+    public static Map<String, String> read(File journal) throws IOException {
+        Path path = journal.toPath();
+        if (Files.notExists(path)) {
+            return Collections.emptyMap();
+        }
+        Object version = versionOf(path);
+        String key = path.toAbsolutePath().toString();
+        Snapshot snapshot = SNAPSHOTS.get(key);
+        if (snapshot == null || !snapshot.version.equals(version)) {
+            snapshot = new Snapshot(version, Collections.unmodifiableMap(parse(path)));
+            SNAPSHOTS.put(key, snapshot);
+        }
+        return snapshot.variables;
+    }
+
+    public synchronized void save(Map<String, String> variables) throws IOException {
+        // stages write the variables concurrently, the journal and the persisted state must be built from the same view
+        Map<String, String> snapshot = new HashMap<>(variables);
+        List<String> changes = new ArrayList<>();
+        for (Entry<String, String> entry : snapshot.entrySet()) {
+            if (entry.getValue() != null && !entry.getValue().equals(persisted.get(entry.getKey()))) {
+                changes.add(entry.getKey() + DELIMITER + escape(entry.getValue()));
+            }
+        }
+        for (String key : persisted.keySet()) {
+            if (snapshot.get(key) == null) {
+                changes.add(key);
+            }
+        }
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        try (BufferedWriter writer = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (String change : changes) {
+                writer.write(change);
+                writer.newLine();
+            }
+        }
+        persisted.clear();
+        snapshot.forEach((key, value) -> {
+            if (value != null) {
+                persisted.put(key, value);
+            }
+        });
+    }
+
+    public synchronized void compact() throws IOException {
+        Path compacted = journal.resolveSibling(journal.getFileName() + ".compact");
+        try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+            for (Entry<String, String> entry : persisted.entrySet()) {
+                writer.write(entry.getKey() + DELIMITER + escape(entry.getValue()));
+                writer.newLine();
+            }
+        }
+        Files.move(compacted, journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Map<String, String> parse(Path journal) throws IOException {
+        Map<String, String> variables = new LinkedHashMap<>();
+        if (Files.notExists(journal)) {
+            return variables;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journal, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                // values may contain the delimiter, only the first one separates the key
+                int index = line.indexOf(DELIMITER);
+                if (index < 0) {
+                    variables.remove(line);
+                } else {
+                    variables.put(line.substring(0, index), unescape(line.substring(index + 1)));
+                }
+            }
+        }
+        return variables;
+    }
+
+    private static Object versionOf(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        Object fileKey = attributes.fileKey();
+        return Arrays.asList(fileKey == null ? "" : fileKey, attributes.lastModifiedTime(), attributes.size());
+    }
+
+    private static String escape(String value) {
+        if (value.indexOf('\\') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder builder = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char current = value.charAt(i);
+            if (current == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                builder.append(current);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static class Snapshot {
+
+        private final Object version;
+
+        private final Map<String, String> variables;
+
+        private Snapshot(Object version, Map<String, String> variables) {
+            this.version = version;
+            this.variables = variables;
+        }
+
+    }
+
+}
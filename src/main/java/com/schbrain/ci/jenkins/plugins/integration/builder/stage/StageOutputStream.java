@@ -0,0 +1,90 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.stage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Console output of one stage, every line is prefixed with the stage name.
+ * <p>
+ * Output is buffered until the stage becomes the head of the console, so the console of a build always shows
+ * the stages in the declared order, no matter which one finishes first.
+ *
+ * @author liaozan
+ * @since 2022/4/13
+ */
+public class StageOutputStream extends OutputStream {
+
+    private final OutputStream console;
+
+    private final byte[] prefix;
+
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private boolean lineStart = true;
+
+    public StageOutputStream(String stageName, OutputStream console) {
+        this.console = console;
+        this.prefix = ("[" + stageName + "] ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        OutputStream target = target();
+        if (lineStart) {
+            target.write(prefix);
+        }
+        target.write(b);
+        lineStart = b == '\n';
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        OutputStream target = target();
+        int end = offset + length;
+        int lineBegin = offset;
+        for (int i = offset; i < end; i++) {
+            if (bytes[i] != '\n') {
+                continue;
+            }
+            if (lineStart) {
+                target.write(prefix);
+            }
+            target.write(bytes, lineBegin, i + 1 - lineBegin);
+            lineBegin = i + 1;
+            lineStart = true;
+        }
+        if (lineBegin < end) {
+            if (lineStart) {
+                target.write(prefix);
+            }
+            target.write(bytes, lineBegin, end - lineBegin);
+            lineStart = false;
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (buffer == null) {
+            console.flush();
+        }
+    }
+
+    /**
+     * Write everything buffered so far to the console and write through from now on
+     */
+    public synchronized void attach() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        buffer.writeTo(console);
+        buffer = null;
+        console.flush();
+    }
+
+    private OutputStream target() {
+        return buffer == null ? console : buffer;
+    }
+
+}
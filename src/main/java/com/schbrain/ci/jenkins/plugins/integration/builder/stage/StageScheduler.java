@@ -0,0 +1,224 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.stage;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
+import hudson.model.StreamBuildListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.util.SystemProperties;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs the stages of a build as a dependency graph, a stage starts as soon as all of its dependencies are finished.
+ * <p>
+ * The first failed stage cancels all running stages and skips the pending ones, its exception is rethrown to the caller
+ * once the cancelled stages are stopped. Interrupting the calling thread (e.g. aborting the build) cancels the running stages as well.
+ * <p>
+ * Every build runs its stages on its own executor, see {@link #newExecutor()}, so the stages of one build never wait for another build.
+ *
+ * @author liaozan
+ * @since 2022/4/13
+ */
+public class StageScheduler {
+
+    private static final int MAX_PARALLELISM = SystemProperties.getInteger(StageScheduler.class.getName() + ".maxParallelism", 4);
+
+    /**
+     * how long a cancelled stage may take to stop, e.g. for the launched processes to be killed
+     */
+    private static final long TERMINATION_TIMEOUT = SystemProperties.getLong(StageScheduler.class.getName() + ".terminationTimeout", TimeUnit.MINUTES.toMillis(5));
+
+    private final BuilderContext context;
+
+    private final ExecutorService executor;
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+
+    public StageScheduler(BuilderContext context, ExecutorService executor) {
+        this.context = context;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the executor of the stages of one build, must be stopped by {@link #terminate(ExecutorService, BuilderContext)} once the build is finished
+     */
+    public static ExecutorService newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_PARALLELISM, MAX_PARALLELISM, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamingThreadFactory(new DaemonThreadFactory(), StageScheduler.class.getSimpleName()));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Interrupt the running stages of the executor and wait for them to stop, nothing of the build may be cleaned up before.
+     * Waits even if the calling thread is interrupted, the interrupt is restored afterwards
+     */
+    public static void terminate(ExecutorService executor, BuilderContext context) {
+        executor.shutdownNow();
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TERMINATION_TIMEOUT);
+        try {
+            while (!executor.isTerminated()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    context.log("stages are still running after %sms, give up waiting", TERMINATION_TIMEOUT);
+                    break;
+                }
+                try {
+                    executor.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public StageScheduler stage(String name, StageTask task, String... dependencies) {
+        for (String dependency : dependencies) {
+            if (!stages.containsKey(dependency)) {
+                throw new IllegalArgumentException(String.format("stage %s depends on undeclared stage %s", name, dependency));
+            }
+        }
+        if (stages.containsKey(name)) {
+            throw new IllegalArgumentException(String.format("stage %s is declared twice", name));
+        }
+        stages.put(name, new Stage(name, task, Arrays.asList(dependencies), context.getListener().getLogger()));
+        return this;
+    }
+
+    public void run() throws Exception {
+        List<Stage> ordered = new ArrayList<>(stages.values());
+        CompletionService<Stage> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<Stage>, Stage> running = new HashMap<>();
+        Set<String> finished = new HashSet<>();
+        Exception failure = null;
+        int head = 0;
+
+        try {
+            head = attachFinishedStages(ordered, head);
+            submitReadyStages(ordered, finished, running, completionService);
+            while (!running.isEmpty()) {
+                Future<Stage> future = completionService.take();
+                Stage stage = running.remove(future);
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failure = unwrap(e);
+                    context.getLogger().println("stage %s failed, cancel the others", stage.name);
+                    break;
+                }
+                stage.finished = true;
+                finished.add(stage.name);
+                head = attachFinishedStages(ordered, head);
+                submitReadyStages(ordered, finished, running, completionService);
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        } finally {
+            for (Future<Stage> future : running.keySet()) {
+                future.cancel(true);
+            }
+            if (!running.isEmpty()) {
+                // the cancelled stages may still write env vars and files, wait until they are stopped
+                terminate(executor, context);
+            }
+            // keep the output of the cancelled and skipped stages in the declared order
+            for (int i = head; i < ordered.size(); i++) {
+                ordered.get(i).output.attach();
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void submitReadyStages(List<Stage> ordered, Set<String> finished, Map<Future<Stage>, Stage> running,
+                                   CompletionService<Stage> completionService) {
+        for (Stage stage : ordered) {
+            if (stage.submitted || !finished.containsAll(stage.dependencies)) {
+                continue;
+            }
+            stage.submitted = true;
+            BuilderContext stageContext = context.forStage(stage.name, new StreamBuildListener(stage.output, StandardCharsets.UTF_8));
+            Future<Stage> future = completionService.submit(() -> {
+                boolean success = false;
+                long startedAt = System.nanoTime();
+                try {
+                    stage.task.run(stageContext);
+                    success = true;
+                } finally {
+                    stageContext.closeSession();
+                    context.getTimeline().record(StageTimeline.STAGE, stage.name, stage.name, startedAt, System.nanoTime(), -1, success);
+                }
+                return stage;
+            });
+            running.put(future, stage);
+        }
+    }
+
+    /**
+     * Attach the head stage to the console, move on while the head is already finished
+     */
+    private int attachFinishedStages(List<Stage> ordered, int head) throws IOException {
+        while (head < ordered.size()) {
+            Stage stage = ordered.get(head);
+            stage.output.attach();
+            if (!stage.finished) {
+                break;
+            }
+            head++;
+        }
+        return head;
+    }
+
+    private Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return e;
+    }
+
+    @FunctionalInterface
+    public interface StageTask {
+
+        void run(BuilderContext context) throws Exception;
+
+    }
+
+    private static class Stage {
+
+        private final String name;
+
+        private final StageTask task;
+
+        private final List<String> dependencies;
+
+        private final StageOutputStream output;
+
+        private boolean submitted;
+
+        private boolean finished;
+
+        private Stage(String name, StageTask task, List<String> dependencies, PrintStream console) {
+            this.name = name;
+            this.task = task;
+            this.dependencies = dependencies;
+            this.output = new StageOutputStream(name, console);
+        }
+
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.stage;
+
+import com.schbrain.ci.jenkins.plugins.integration.action.StageTimelineAction;
+import com.schbrain.ci.jenkins.plugins.integration.action.StageTimelineAction.TimelineEntry;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the timing of the stages and commands of one build, all times are taken from {@link System#nanoTime()}.
+ *
+ * @author liaozan
+ * @since 2022/4/15
+ */
+public class StageTimeline {
+
+    public static final String STAGE = "stage";
+
+    public static final String COMMAND = "command";
+
+    private static final int MAX_NAME_LENGTH = 200;
+
+    private final long origin = System.nanoTime();
+
+    private final List<TimelineEntry> entries = new ArrayList<>();
+
+    /**
+     * @param spawnNanos time spent before the process was running, negative if not applicable
+     */
+    public void record(String type, String stage, String name, long startNanos, long endNanos, long spawnNanos, boolean success) {
+        long spawnMillis = spawnNanos < 0 ? -1 : toMillis(spawnNanos);
+        TimelineEntry entry = new TimelineEntry(type, stage, abbreviate(name), toMillis(startNanos - origin), toMillis(endNanos - startNanos), spawnMillis, success);
+        synchronized (entries) {
+            entries.add(entry);
+        }
+    }
+
+    public StageTimelineAction toAction(String executionSuffix) {
+        List<TimelineEntry> sorted;
+        synchronized (entries) {
+            sorted = new ArrayList<>(entries);
+        }
+        sorted.sort(Comparator.comparingLong(TimelineEntry::getStartMillis));
+        return new StageTimelineAction(sorted, executionSuffix);
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static String abbreviate(String name) {
+        if (name == null || name.length() <= MAX_NAME_LENGTH) {
+            return name;
+        }
+        return name.substring(0, MAX_NAME_LENGTH) + "...";
+    }
+
+}
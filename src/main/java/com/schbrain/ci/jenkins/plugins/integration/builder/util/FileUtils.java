@@ -1,13 +1,13 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder.util;
 
-import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
-import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
 
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -25,31 +25,6 @@ import java.util.Properties;
  */
 public class FileUtils {
 
-    /**
-     * lookup the special file
-     */
-    @CheckForNull
-    public static FilePath lookupFile(BuilderContext context, String fileName) throws IOException, InterruptedException {
-        return lookupFile(context.getWorkspace(), fileName, context.getLogger());
-    }
-
-    /**
-     * lookup the special file
-     */
-    @CheckForNull
-    public static FilePath lookupFile(FilePath searchLocation, String fileName, Logger logger) throws IOException, InterruptedException {
-        if (searchLocation == null || !searchLocation.exists()) {
-            logger.println("searchLocation not exist", true);
-            return null;
-        }
-        FilePath[] fileList = searchLocation.list("**/" + fileName);
-        if (fileList.length == 0) {
-            logger.println("could not found matched file: %s", fileName);
-            return null;
-        }
-        return getTheClosestFile(fileList);
-    }
-
     public static String toRelativePath(FilePath root, FilePath filePath) {
         Path rootPath = Paths.get(root.getRemote());
         Path targetFilePath = Paths.get(filePath.getRemote());
@@ -72,9 +47,18 @@ public class FileUtils {
     }
 
     public static Map<String, String> filePathToMap(FilePath lookupFile) throws IOException, InterruptedException {
-        Map<String, String> result = new HashMap<>();
+        return lookupFile.act(new ReadPropertiesCallable());
+    }
+
+    /**
+     * Read the properties file as UTF-8, called where the file lives
+     */
+    static HashMap<String, String> readProperties(Path file) throws IOException {
+        HashMap<String, String> result = new HashMap<>();
         Properties properties = new Properties();
-        properties.load(new StringReader(lookupFile.readToString()));
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
         for (String propertyName : properties.stringPropertyNames()) {
             result.put(propertyName, properties.getProperty(propertyName));
         }
@@ -101,12 +85,13 @@ public class FileUtils {
     public static void writeUtf8Map(Map<String, String> variables, File file, String delimiter) {
         try {
             Path filePath = getFilePath(file.getPath());
-            BufferedWriter writer = Files.newBufferedWriter(filePath);
-            for (Entry<String, String> entry : variables.entrySet()) {
-                String content = String.format("%s%s%s", entry.getKey(), delimiter, entry.getValue());
-                writer.write(content);
-                writer.newLine();
-                writer.flush();
+            try (BufferedWriter writer = Files.newBufferedWriter(filePath, StandardCharsets.UTF_8)) {
+                for (Entry<String, String> entry : variables.entrySet()) {
+                    writer.write(entry.getKey());
+                    writer.write(delimiter);
+                    writer.write(String.valueOf(entry.getValue()));
+                    writer.newLine();
+                }
             }
         } catch (IOException e) {
             throw new IllegalStateException(e);
@@ -130,4 +115,15 @@ public class FileUtils {
         return filePath;
     }
 
+    private static class ReadPropertiesCallable extends MasterToSlaveFileCallable<HashMap<String, String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public HashMap<String, String> invoke(File file, VirtualChannel channel) throws IOException {
+            return readProperties(file.toPath());
+        }
+
+    }
+
 }
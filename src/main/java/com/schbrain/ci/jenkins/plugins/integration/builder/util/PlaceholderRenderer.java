@@ -0,0 +1,210 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.util;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Single pass renderer for templates which only use {@code $VAR} and {@code ${VAR}}, works from a Reader to a Writer
+ * with a fixed buffer, values are written straight from the variables.
+ * <p>
+ * Unresolved references are written back as is, same as the template engine does. {@link #references(Reader)} tells
+ * whether a template uses anything else (directives, comments, escapes, quiet or property references), such templates
+ * must be rendered by the engine.
+ *
+ * @author liaozan
+ * @since 2022/4/28
+ */
+class PlaceholderRenderer {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * only the referenced values are looked up, nothing is built over all variables per render
+     */
+    private final Map<String, String> variables;
+
+    private final CharSource source;
+
+    private final Set<String> references = new TreeSet<>();
+
+    private char[] identifier = new char[64];
+
+    private int identifierLength;
+
+    private PlaceholderRenderer(Reader reader, Map<String, String> variables) {
+        this.source = new CharSource(reader);
+        this.variables = variables;
+    }
+
+    /**
+     * @return the names of the variables referenced by the template, or null if it needs the engine
+     */
+    @CheckForNull
+    static Set<String> references(Reader reader) throws IOException {
+        PlaceholderRenderer renderer = new PlaceholderRenderer(reader, null);
+        return renderer.scan() ? null : renderer.references;
+    }
+
+    /**
+     * Render a template for which {@link #references(Reader)} returned the references
+     */
+    static void render(Reader reader, Writer writer, Map<String, String> variables) throws IOException {
+        new PlaceholderRenderer(reader, variables).render(writer);
+    }
+
+    /**
+     * @return true if the template needs the engine
+     */
+    private boolean scan() throws IOException {
+        int current;
+        while ((current = source.next()) >= 0) {
+            int next = source.peek(0);
+            if (current == '\\' && (next == '$' || next == '#')) {
+                return true;
+            }
+            if (current == '#' && (Character.isLetter(next) || next == '{' || next == '#' || next == '*' || next == '@' || next == '[')) {
+                return true;
+            }
+            if (current != '$') {
+                continue;
+            }
+            if (next == '!') {
+                return true;
+            }
+            if (next == '{') {
+                source.next();
+                if (!readIdentifier() || source.peek(0) != '}') {
+                    return true;
+                }
+                source.next();
+                references.add(new String(identifier, 0, identifierLength));
+            } else if (readIdentifier()) {
+                int after = source.peek(0);
+                if (after == '(' || after == '[' || (after == '.' && isIdentifierStart(source.peek(1)))) {
+                    return true;
+                }
+                references.add(new String(identifier, 0, identifierLength));
+            }
+        }
+        return false;
+    }
+
+    private void render(Writer writer) throws IOException {
+        int current;
+        while ((current = source.next()) >= 0) {
+            if (current != '$') {
+                writer.write(current);
+                continue;
+            }
+            if (source.peek(0) == '{') {
+                source.next();
+                readIdentifier();
+                // references guarantees the closing brace
+                source.next();
+                String value = TemplateUtils.getVariable(variables, new String(identifier, 0, identifierLength));
+                if (value == null) {
+                    writer.write("${");
+                    writer.write(identifier, 0, identifierLength);
+                    writer.write('}');
+                } else {
+                    writer.write(value);
+                }
+            } else if (readIdentifier()) {
+                String value = TemplateUtils.getVariable(variables, new String(identifier, 0, identifierLength));
+                if (value == null) {
+                    writer.write('$');
+                    writer.write(identifier, 0, identifierLength);
+                } else {
+                    writer.write(value);
+                }
+            } else {
+                writer.write('$');
+            }
+        }
+    }
+
+    private boolean readIdentifier() throws IOException {
+        identifierLength = 0;
+        if (!isIdentifierStart(source.peek(0))) {
+            return false;
+        }
+        while (isIdentifierPart(source.peek(0))) {
+            if (identifierLength == identifier.length) {
+                identifier = Arrays.copyOf(identifier, identifierLength * 2);
+            }
+            identifier[identifierLength++] = (char) source.next();
+        }
+        return true;
+    }
+
+    private static boolean isIdentifierStart(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isIdentifierPart(int c) {
+        return isIdentifierStart(c) || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Buffered characters of the reader with a lookahead of two
+     */
+    private static class CharSource {
+
+        private final Reader reader;
+
+        private final char[] buffer = new char[BUFFER_SIZE];
+
+        private int position;
+
+        private int limit;
+
+        private boolean exhausted;
+
+        private CharSource(Reader reader) {
+            this.reader = reader;
+        }
+
+        private int next() throws IOException {
+            if (!fill(1)) {
+                return -1;
+            }
+            return buffer[position++];
+        }
+
+        private int peek(int offset) throws IOException {
+            if (!fill(offset + 1)) {
+                return -1;
+            }
+            return buffer[position + offset];
+        }
+
+        private boolean fill(int required) throws IOException {
+            while (limit - position < required) {
+                if (exhausted) {
+                    return false;
+                }
+                if (position > 0) {
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                }
+                int read = reader.read(buffer, limit, buffer.length - limit);
+                if (read < 0) {
+                    exhausted = true;
+                } else {
+                    limit += read;
+                }
+            }
+            return true;
+        }
+
+    }
+
+}
@@ -1,15 +1,28 @@
 package com.schbrain.ci.jenkins.plugins.integration.builder.util;
 
 import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
-import org.apache.velocity.VelocityContext;
-import org.apache.velocity.app.Velocity;
+import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
+import jenkins.util.SystemProperties;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.velocity.Template;
+import org.apache.velocity.context.AbstractContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.parser.ParseException;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.SimpleNode;
 
-import java.io.StringWriter;
+import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.Map.Entry;
 
 /**
  * @author liaozan
@@ -17,17 +30,199 @@ import java.util.Map;
  */
 public class TemplateUtils {
 
+    private static final String TEMPLATE_NAME = "Template Evaluate";
+
+    private static final int MAX_CACHED_TEMPLATES = 256;
+
+    private static final int MAX_RENDERED_TEMPLATES = SystemProperties.getInteger(TemplateUtils.class.getName() + ".maxRenderedTemplates", 512);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * directives which render content the references can not tell
+     */
+    private static final Set<String> UNTRACKED_DIRECTIVES = new HashSet<>(Arrays.asList("evaluate", "parse", "include"));
+
+    private static final RuntimeInstance ENGINE = createEngine();
+
+    private static final Map<String, Template> TEMPLATE_CACHE = Collections.synchronizedMap(new LinkedHashMap<String, Template>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, Template> eldest) {
+            return size() > MAX_CACHED_TEMPLATES;
+        }
+
+    });
+
+    private static final Map<String, TemplateInfo> TEMPLATE_INFOS = Collections.synchronizedMap(new LinkedHashMap<String, TemplateInfo>(16, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Entry<String, TemplateInfo> eldest) {
+            return size() > MAX_CACHED_TEMPLATES;
+        }
+
+    });
+
     public static void resolveDeployFilePlaceholder(Path templateFile, Path deployFile, BuilderContext context) throws Exception {
         if (templateFile == null) {
             return;
         }
-        if (Files.notExists(deployFile)) {
-            Files.createFile(deployFile);
+        renderFile(templateFile, deployFile, context.getEnvVars());
+    }
+
+    /**
+     * Render the template file into the target file without holding either in memory, the engine is only used
+     * when the template needs more than simple references.
+     * <p>
+     * The output is memoized by the template and the values of the variables it references, an unchanged output
+     * is linked from the memo instead of rendered again. The target is replaced, never written in place,
+     * it may be hardlinked from a shared cache
+     */
+    public static void renderFile(Path templateFile, Path targetFile, Map<String, String> variables) throws IOException {
+        renderFile(templateFile, targetFile, variables, FileManager.getRenderedTemplateCacheDir().toPath());
+    }
+
+    static void renderFile(Path templateFile, Path targetFile, Map<String, String> variables, Path renderedDir) throws IOException {
+        String templateHash;
+        try (InputStream input = Files.newInputStream(templateFile)) {
+            templateHash = DigestUtils.sha256Hex(input);
+        }
+        TemplateInfo templateInfo = getTemplateInfo(templateHash, templateFile);
+        if (templateInfo.references == null) {
+            renderFile(templateFile, templateHash, templateInfo, targetFile, variables);
+            return;
         }
 
-        String templateContent = new String(Files.readAllBytes(templateFile), StandardCharsets.UTF_8);
-        String resolved = resolve(templateContent, context.getEnvVars());
-        Files.write(deployFile, resolved.getBytes(StandardCharsets.UTF_8));
+        Path rendered = renderedDir.resolve(getRenderKey(templateHash, templateInfo.references, variables));
+        if (linkRendered(rendered, targetFile)) {
+            return;
+        }
+        renderFile(templateFile, templateHash, templateInfo, rendered, variables);
+        evictRenderedTemplates(renderedDir);
+        if (!linkRendered(rendered, targetFile)) {
+            // evicted by a concurrent build in the meantime
+            renderFile(templateFile, templateHash, templateInfo, targetFile, variables);
+        }
+    }
+
+    private static void renderFile(Path templateFile, String templateHash, TemplateInfo templateInfo, Path targetFile, Map<String, String> variables) throws IOException {
+        Path tempFile = Files.createTempFile(targetFile.toAbsolutePath().getParent(), targetFile.getFileName().toString(), TEMP_SUFFIX);
+        try {
+            try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                if (templateInfo.needsEngine) {
+                    getTemplate(templateHash, templateFile).merge(new ReadThroughContext(variables), writer);
+                } else {
+                    try (Reader reader = newReader(templateFile)) {
+                        PlaceholderRenderer.render(reader, writer, variables);
+                    }
+                }
+            }
+            Files.move(tempFile, targetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static TemplateInfo getTemplateInfo(String templateHash, Path templateFile) throws IOException {
+        TemplateInfo templateInfo = TEMPLATE_INFOS.get(templateHash);
+        if (templateInfo != null) {
+            return templateInfo;
+        }
+        Set<String> references;
+        try (Reader reader = newReader(templateFile)) {
+            references = PlaceholderRenderer.references(reader);
+        }
+        if (references != null) {
+            templateInfo = new TemplateInfo(false, references);
+        } else {
+            Set<String> engineReferences = new TreeSet<>();
+            boolean memoizable = collectReferences((Node) getTemplate(templateHash, templateFile).getData(), engineReferences);
+            templateInfo = new TemplateInfo(true, memoizable ? engineReferences : null);
+        }
+        TEMPLATE_INFOS.put(templateHash, templateInfo);
+        return templateInfo;
+    }
+
+    /**
+     * @return false if the output may depend on more than the collected references
+     */
+    private static boolean collectReferences(Node node, Set<String> references) {
+        if (node instanceof ASTDirective && UNTRACKED_DIRECTIVES.contains(((ASTDirective) node).getDirectiveName())) {
+            return false;
+        }
+        if (node instanceof ASTReference) {
+            String rootName = ((ASTReference) node).getRootString();
+            if (rootName == null) {
+                return false;
+            }
+            references.add(rootName);
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            if (!collectReferences(node.jjtGetChild(i), references)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static String getRenderKey(String templateHash, Set<String> references, Map<String, String> variables) {
+        StringBuilder key = new StringBuilder(templateHash);
+        for (String reference : references) {
+            String value = getVariable(variables, reference);
+            key.append('\n').append(reference);
+            // length prefixed, a value can never read as the next reference
+            if (value == null) {
+                key.append('!');
+            } else {
+                key.append('=').append(value.length()).append(':').append(value);
+            }
+        }
+        return DigestUtils.sha256Hex(key.toString());
+    }
+
+    /**
+     * @return false if there is no such output in the memo, including one evicted by a concurrent build while linking
+     */
+    private static boolean linkRendered(Path rendered, Path targetFile) throws IOException {
+        try {
+            if (Files.notExists(rendered)) {
+                return false;
+            }
+            if (Files.exists(targetFile) && Files.isSameFile(rendered, targetFile)) {
+                return true;
+            }
+            Files.deleteIfExists(targetFile);
+            try {
+                Files.createLink(targetFile, rendered);
+            } catch (NoSuchFileException e) {
+                throw e;
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(rendered, targetFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+            // keep recently used outputs on eviction
+            Files.setLastModifiedTime(rendered, FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            // a cache miss, the caller renders the memo again
+            return false;
+        }
+    }
+
+    private static void evictRenderedTemplates(Path renderedDir) throws IOException {
+        File[] renderedFiles = renderedDir.toFile().listFiles(file -> file.isFile() && !file.getName().endsWith(TEMP_SUFFIX));
+        if (renderedFiles == null || renderedFiles.length <= MAX_RENDERED_TEMPLATES) {
+            return;
+        }
+        Arrays.sort(renderedFiles, Comparator.comparingLong(File::lastModified).reversed());
+        // builds keep their own hardlinks, so removing an output never breaks a build
+        for (int i = MAX_RENDERED_TEMPLATES; i < renderedFiles.length; i++) {
+            Files.deleteIfExists(renderedFiles[i].toPath());
+        }
+    }
+
+    private static Reader newReader(Path file) throws IOException {
+        // PlaceholderRenderer buffers by itself
+        return new InputStreamReader(Files.newInputStream(file), StandardCharsets.UTF_8);
     }
 
     public static String resolve(String template, Map<String, String> variables) {
@@ -37,12 +232,130 @@ public class TemplateUtils {
         if (null == variables || variables.isEmpty()) {
             return template;
         }
+        // nothing to resolve, skip the engine entirely
+        if (template.indexOf('$') < 0 && template.indexOf('#') < 0) {
+            return template;
+        }
 
-        Map<String, Object> params = new LinkedHashMap<>(variables);
-        VelocityContext velocityContext = new VelocityContext(params);
-        StringWriter writer = new StringWriter();
-        Velocity.evaluate(velocityContext, writer, "Template Evaluate", template);
+        StringWriter writer = new StringWriter(template.length());
+        getTemplate(template).merge(new ReadThroughContext(variables), writer);
         return writer.getBuffer().toString();
     }
 
-}
\ No newline at end of file
+    /**
+     * Look up a variable by its exact name. {@link hudson.EnvVars} compares its keys case insensitive, but a template
+     * resolves {@code $home} only from a variable named home, never from HOME
+     */
+    static String getVariable(Map<String, String> variables, String name) {
+        if (!(variables instanceof NavigableMap)) {
+            return variables.get(name);
+        }
+        // the entry equal by the comparator of the map, its key tells the exact name
+        Entry<String, String> entry = ((NavigableMap<String, String>) variables).ceilingEntry(name);
+        return entry != null && entry.getKey().equals(name) ? entry.getValue() : null;
+    }
+
+    private static Template getTemplate(String content) {
+        String key = DigestUtils.sha256Hex(content);
+        Template template = TEMPLATE_CACHE.get(key);
+        if (template == null) {
+            template = parse(new StringReader(content));
+            TEMPLATE_CACHE.put(key, template);
+        }
+        return template;
+    }
+
+    private static Template getTemplate(String templateHash, Path templateFile) throws IOException {
+        Template template = TEMPLATE_CACHE.get(templateHash);
+        if (template == null) {
+            try (Reader reader = newReader(templateFile)) {
+                template = parse(reader);
+            }
+            TEMPLATE_CACHE.put(templateHash, template);
+        }
+        return template;
+    }
+
+    private static Template parse(Reader content) {
+        Template template = new Template();
+        template.setName(TEMPLATE_NAME);
+        template.setRuntimeServices(ENGINE);
+        try {
+            SimpleNode node = ENGINE.parse(content, template);
+            template.setData(node);
+            template.initDocument();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("failed to parse template: " + e.getMessage(), e);
+        }
+        return template;
+    }
+
+    private static RuntimeInstance createEngine() {
+        Properties properties = new Properties();
+        // unresolved references are expected here, they are written back as is
+        properties.setProperty(RuntimeConstants.RUNTIME_LOG_REFERENCE_LOG_INVALID, "false");
+        RuntimeInstance engine = new RuntimeInstance();
+        engine.init(properties);
+        return engine;
+    }
+
+    private static class TemplateInfo {
+
+        private final boolean needsEngine;
+
+        /**
+         * variables the output depends on, null if that is unknown
+         */
+        private final Set<String> references;
+
+        private TemplateInfo(boolean needsEngine, Set<String> references) {
+            this.needsEngine = needsEngine;
+            this.references = references;
+        }
+
+    }
+
+    /**
+     * Reads through to the variables without copying them, variables set by the template itself are kept locally
+     */
+    private static class ReadThroughContext extends AbstractContext {
+
+        private final Map<String, String> variables;
+
+        private final Map<String, Object> locals = new HashMap<>();
+
+        private ReadThroughContext(Map<String, String> variables) {
+            this.variables = variables;
+        }
+
+        @Override
+        public Object internalGet(String key) {
+            Object value = locals.get(key);
+            return value != null ? value : getVariable(variables, key);
+        }
+
+        @Override
+        public Object internalPut(String key, Object value) {
+            return locals.put(key, value);
+        }
+
+        @Override
+        public boolean internalContainsKey(String key) {
+            return locals.containsKey(key) || getVariable(variables, key) != null;
+        }
+
+        @Override
+        public String[] internalGetKeys() {
+            Set<String> keys = new LinkedHashSet<>(variables.keySet());
+            keys.addAll(locals.keySet());
+            return keys.toArray(new String[0]);
+        }
+
+        @Override
+        public Object internalRemove(String key) {
+            return locals.remove(key);
+        }
+
+    }
+
+}
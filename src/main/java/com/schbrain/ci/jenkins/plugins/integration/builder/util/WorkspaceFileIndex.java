@@ -0,0 +1,214 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.util;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.Map.Entry;
+
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants.BUILD_INFO_FILE_NAME;
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants.DOCKERFILE_NAME;
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.GitConstants.GIT_PROPERTIES_FILE;
+
+/**
+ * Index of the well-known files under a directory, built in a single walk.
+ * <p>
+ * The walk runs where the directory lives and keeps the listing of every directory between builds,
+ * a directory is listed again only when its mtime changed. Properties files found by the walk are parsed
+ * in the same call, so building the index costs a single remoting round trip.
+ *
+ * @author liaozan
+ * @since 2022/4/11
+ */
+public class WorkspaceFileIndex {
+
+    public static final List<String> WELL_KNOWN_FILES = Collections.unmodifiableList(Arrays.asList(BUILD_INFO_FILE_NAME, DOCKERFILE_NAME, GIT_PROPERTIES_FILE));
+
+    public static final List<String> PROPERTIES_FILES = Collections.unmodifiableList(Arrays.asList(BUILD_INFO_FILE_NAME, GIT_PROPERTIES_FILE));
+
+    private static final String DEFAULT_PRUNED_DIRS = ".git,.svn,.hg,.idea,node_modules";
+
+    private static final List<String> PRUNED_DIRS = Arrays.asList(StringUtils.split(SystemProperties.getString(WorkspaceFileIndex.class.getName() + ".prunedDirs", DEFAULT_PRUNED_DIRS), ','));
+
+    private final FilePath root;
+
+    private final Map<String, String> closestFiles;
+
+    private final Map<String, HashMap<String, String>> properties;
+
+    private WorkspaceFileIndex(FilePath root, IndexResult result) {
+        this.root = root;
+        this.closestFiles = result.closestFiles;
+        this.properties = result.properties;
+    }
+
+    public static WorkspaceFileIndex build(FilePath root) throws IOException, InterruptedException {
+        return new WorkspaceFileIndex(root, root.act(new IndexCallable(WELL_KNOWN_FILES, PROPERTIES_FILES, PRUNED_DIRS)));
+    }
+
+    /**
+     * @return the closest file named fileName, same as {@link FileUtils#getTheClosestFile(FilePath[])}
+     */
+    @CheckForNull
+    public FilePath lookup(String fileName) {
+        String matched = closestFiles.get(fileName);
+        if (matched == null) {
+            return null;
+        }
+        return new FilePath(root.getChannel(), matched);
+    }
+
+    /**
+     * @return the content of the closest properties file named fileName, parsed while indexing
+     */
+    @CheckForNull
+    public Map<String, String> readProperties(String fileName) {
+        return properties.get(fileName);
+    }
+
+    public boolean isIndexed(String fileName) {
+        return WELL_KNOWN_FILES.contains(fileName);
+    }
+
+    private static class IndexResult implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final HashMap<String, String> closestFiles = new HashMap<>();
+
+        private final HashMap<String, HashMap<String, String>> properties = new HashMap<>();
+
+    }
+
+    private static class IndexCallable extends MasterToSlaveFileCallable<IndexResult> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int MAX_CACHED_ROOTS = 32;
+
+        /**
+         * listings of the previous walks, keyed by root, lives in the jvm where the walk happens
+         */
+        private static final Map<String, Map<Path, Listing>> LISTINGS = Collections.synchronizedMap(new LinkedHashMap<String, Map<Path, Listing>>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Entry<String, Map<Path, Listing>> eldest) {
+                return size() > MAX_CACHED_ROOTS;
+            }
+
+        });
+
+        private final HashSet<String> fileNames;
+
+        private final HashSet<String> propertiesFileNames;
+
+        private final HashSet<String> prunedDirs;
+
+        private IndexCallable(Collection<String> fileNames, Collection<String> propertiesFileNames, Collection<String> prunedDirs) {
+            this.fileNames = new HashSet<>(fileNames);
+            this.propertiesFileNames = new HashSet<>(propertiesFileNames);
+            this.prunedDirs = new HashSet<>(prunedDirs);
+        }
+
+        @Override
+        public IndexResult invoke(File file, VirtualChannel channel) throws IOException {
+            IndexResult result = new IndexResult();
+            Path root = file.toPath();
+            if (!Files.isDirectory(root)) {
+                return result;
+            }
+            HashMap<String, String> closestFiles = result.closestFiles;
+
+            String cacheKey = root.toAbsolutePath() + "|" + new TreeSet<>(fileNames) + "|" + new TreeSet<>(prunedDirs);
+            Map<Path, Listing> previous = LISTINGS.getOrDefault(cacheKey, Collections.emptyMap());
+            Map<Path, Listing> current = new HashMap<>();
+
+            Deque<Path> pending = new ArrayDeque<>();
+            pending.push(root);
+            while (!pending.isEmpty()) {
+                Path dir = pending.pop();
+                FileTime lastModified;
+                try {
+                    lastModified = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS);
+                } catch (NoSuchFileException e) {
+                    continue;
+                }
+                Listing listing = previous.get(dir);
+                if (listing == null || !listing.lastModified.equals(lastModified)) {
+                    listing = list(dir, lastModified);
+                }
+                current.put(dir, listing);
+
+                for (String matched : listing.files) {
+                    String candidate = dir.resolve(matched).toString();
+                    String existing = closestFiles.get(matched);
+                    if (existing == null || candidate.length() < existing.length()) {
+                        closestFiles.put(matched, candidate);
+                    }
+                }
+                // push in reverse so that directories are walked in name order
+                for (int i = listing.dirs.size() - 1; i >= 0; i--) {
+                    pending.push(dir.resolve(listing.dirs.get(i)));
+                }
+            }
+            LISTINGS.put(cacheKey, current);
+
+            for (Entry<String, String> closestFile : closestFiles.entrySet()) {
+                if (propertiesFileNames.contains(closestFile.getKey())) {
+                    result.properties.put(closestFile.getKey(), FileUtils.readProperties(Paths.get(closestFile.getValue())));
+                }
+            }
+            return result;
+        }
+
+        private Listing list(Path dir, FileTime lastModified) throws IOException {
+            List<String> dirs = new ArrayList<>();
+            List<String> files = new ArrayList<>();
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+                for (Path child : children) {
+                    String name = child.getFileName().toString();
+                    BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isDirectory()) {
+                        if (!prunedDirs.contains(name)) {
+                            dirs.add(name);
+                        }
+                    } else if (fileNames.contains(name)) {
+                        files.add(name);
+                    }
+                }
+            } catch (NoSuchFileException | AccessDeniedException e) {
+                // removed or unreadable while walking, treat as empty
+            }
+            Collections.sort(dirs);
+            return new Listing(lastModified, dirs, files);
+        }
+
+    }
+
+    private static class Listing {
+
+        private final FileTime lastModified;
+
+        private final List<String> dirs;
+
+        private final List<String> files;
+
+        private Listing(FileTime lastModified, List<String> dirs, List<String> files) {
+            this.lastModified = lastModified;
+            this.dirs = dirs;
+            this.files = files;
+        }
+
+    }
+
+}
@@ -0,0 +1,65 @@
+package com.schbrain.ci.jenkins.plugins.integration.action;
+
+import com.schbrain.ci.jenkins.plugins.integration.action.StageTimelineAction.TimelineEntry;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * The waterfall places every entry relative to the end of the last one
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class StageTimelineActionTest {
+
+    private static final double DELTA = 0.0001;
+
+    @Test
+    public void entriesArePlacedRelativeToTheTotal() {
+        TimelineEntry build = entry("build", 0, 1000);
+        TimelineEntry deploy = entry("deploy", 500, 1500);
+        StageTimelineAction action = new StageTimelineAction(Arrays.asList(build, deploy), null);
+
+        assertEquals(2000, action.getTotalMillis());
+        assertEquals(0, action.left(build), DELTA);
+        assertEquals(50, action.width(build), DELTA);
+        assertEquals(25, action.left(deploy), DELTA);
+        assertEquals(75, action.width(deploy), DELTA);
+    }
+
+    @Test
+    public void shortEntriesStayVisible() {
+        TimelineEntry command = entry("command", 1999, 1);
+        StageTimelineAction action = new StageTimelineAction(Arrays.asList(entry("build", 0, 2000), command), null);
+
+        assertEquals(99.95, action.left(command), DELTA);
+        assertEquals(0.5, action.width(command), DELTA);
+    }
+
+    @Test
+    public void emptyTimelineFillsTheWaterfall() {
+        TimelineEntry instant = entry("instant", 0, 0);
+        StageTimelineAction action = new StageTimelineAction(Collections.singletonList(instant), null);
+
+        assertEquals(0, action.getTotalMillis());
+        assertEquals(0, action.left(instant), DELTA);
+        assertEquals(100, action.width(instant), DELTA);
+    }
+
+    @Test
+    public void actionsSavedWithoutEntriesAreEmpty() {
+        StageTimelineAction action = new StageTimelineAction(null, null);
+
+        assertTrue(action.getEntries().isEmpty());
+        assertEquals(0, action.getTotalMillis());
+    }
+
+    private static TimelineEntry entry(String name, long startMillis, long durationMillis) {
+        return new TimelineEntry("stage", name, name, startMillis, durationMillis, -1, true);
+    }
+
+}
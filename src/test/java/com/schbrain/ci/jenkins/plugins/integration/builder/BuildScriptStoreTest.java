@@ -0,0 +1,299 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptStore.ManifestEntry;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * A blob is kept as long as any manifest references it, and removed with the last one
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class BuildScriptStoreTest {
+
+    private static final String DEPLOYMENT = "kind: Deployment\n";
+
+    private static final String SERVICE = "kind: Service\n";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File storeDir;
+
+    @Before
+    public void setUp() throws IOException {
+        storeDir = temporaryFolder.newFolder("blobs");
+    }
+
+    @Test
+    public void archiveReplacesTheDirByItsManifest() throws IOException {
+        File buildDir = buildDir("1");
+        File buildScriptDir = buildScriptDir(buildDir, DEPLOYMENT, "envVars");
+
+        BuildScriptStore.archive(buildScriptDir, null, rootDir(), storeDir);
+
+        assertFalse(buildScriptDir.exists());
+        assertTrue(BuildScriptStore.isArchived(buildScriptDir));
+        Map<String, ManifestEntry> manifest = BuildScriptStore.readManifest(buildScriptDir);
+        assertEquals(2, manifest.size());
+        ManifestEntry deployment = manifest.get("deploy/deployment.yaml");
+        assertEquals(DigestUtils.sha256Hex(DEPLOYMENT), deployment.getChecksum());
+        assertEquals(DEPLOYMENT.length(), deployment.getSize());
+        assertEquals(DEPLOYMENT, read(blob(DEPLOYMENT)));
+    }
+
+    @Test
+    public void sharedBlobIsKeptUntilTheLastRelease() throws IOException {
+        File firstBuild = buildDir("1");
+        File secondBuild = buildDir("2");
+        BuildScriptStore.archive(buildScriptDir(firstBuild, DEPLOYMENT, "first"), null, rootDir(), storeDir);
+        BuildScriptStore.archive(buildScriptDir(secondBuild, DEPLOYMENT, "second"), null, rootDir(), storeDir);
+
+        BuildScriptStore.release(firstBuild, storeDir);
+        assertTrue(blob(DEPLOYMENT).isFile());
+        assertFalse(blob("first").exists());
+        assertTrue(blob("second").isFile());
+
+        BuildScriptStore.release(secondBuild, storeDir);
+        assertFalse(blob(DEPLOYMENT).exists());
+        assertFalse(blob("second").exists());
+    }
+
+    @Test
+    public void duplicateFilesOfAManifestAreOneReference() throws IOException {
+        File firstBuild = buildDir("1");
+        File secondBuild = buildDir("2");
+        File buildScriptDir = buildScriptDir(firstBuild, DEPLOYMENT, "envVars");
+        write(new File(buildScriptDir, "deploy/copy.yaml"), DEPLOYMENT);
+        BuildScriptStore.archive(buildScriptDir, null, rootDir(), storeDir);
+        BuildScriptStore.archive(buildScriptDir(secondBuild, DEPLOYMENT, "envVars"), null, rootDir(), storeDir);
+
+        BuildScriptStore.release(firstBuild, storeDir);
+
+        assertTrue(blob(DEPLOYMENT).isFile());
+        assertEquals(1, references(DEPLOYMENT).length);
+    }
+
+    @Test
+    public void releaseOnlyTouchesTheMarkersOfItsOwnBlobs() throws IOException {
+        File firstBuild = buildDir("1");
+        File secondBuild = buildDir("2");
+        BuildScriptStore.archive(buildScriptDir(firstBuild, DEPLOYMENT, "envVars"), null, rootDir(), storeDir);
+        BuildScriptStore.archive(buildScriptDir(secondBuild, SERVICE, "envVars"), null, rootDir(), storeDir);
+        assertEquals(2, references("envVars").length);
+
+        BuildScriptStore.release(firstBuild, storeDir);
+
+        assertFalse(blob(DEPLOYMENT).exists());
+        assertFalse(refsDir(DEPLOYMENT).exists());
+        assertEquals(1, references("envVars").length);
+        assertEquals(1, references(SERVICE).length);
+    }
+
+    @Test
+    public void releaseIsIdempotent() throws IOException {
+        File firstBuild = buildDir("1");
+        File secondBuild = buildDir("2");
+        BuildScriptStore.archive(buildScriptDir(firstBuild, DEPLOYMENT, "envVars"), null, rootDir(), storeDir);
+        BuildScriptStore.archive(buildScriptDir(secondBuild, DEPLOYMENT, "envVars"), null, rootDir(), storeDir);
+
+        BuildScriptStore.release(firstBuild, storeDir);
+        BuildScriptStore.release(firstBuild, storeDir);
+
+        assertTrue(blob(DEPLOYMENT).isFile());
+        assertEquals(1, references(DEPLOYMENT).length);
+    }
+
+    @Test
+    public void everyExecutionOfABuildIsReleased() throws IOException {
+        File buildDir = buildDir("1");
+        BuildScriptStore.archive(buildScriptDir(buildDir, "build-script", DEPLOYMENT, "first"), null, rootDir(), storeDir);
+        BuildScriptStore.archive(buildScriptDir(buildDir, "build-script-2", DEPLOYMENT, "second"), null, rootDir(), storeDir);
+        assertEquals(2, references(DEPLOYMENT).length);
+
+        BuildScriptStore.release(buildDir, storeDir);
+
+        assertFalse(blob(DEPLOYMENT).exists());
+        assertFalse(blob("first").exists());
+        assertFalse(blob("second").exists());
+        assertFalse(BuildScriptStore.isArchived(new File(buildDir, "build-script")));
+    }
+
+    @Test
+    public void releaseWithoutManifestsDoesNothing() throws IOException {
+        File firstBuild = buildDir("1");
+        File secondBuild = buildDir("2");
+        BuildScriptStore.archive(buildScriptDir(firstBuild, DEPLOYMENT, "envVars"), null, rootDir(), storeDir);
+
+        BuildScriptStore.release(secondBuild, storeDir);
+
+        assertTrue(blob(DEPLOYMENT).isFile());
+        assertEquals(1, references(DEPLOYMENT).length);
+    }
+
+    @Test
+    public void sourceArchiveIsKeptWithTheBuild() throws IOException {
+        File buildDir = buildDir("1");
+        File buildScriptDir = buildScriptDir(buildDir, DEPLOYMENT, "envVars");
+        File zip = zip("0123abcd.zip", "Dockerfile", "FROM scratch\n");
+        BuildScriptArchive source = BuildScriptArchive.open(zip);
+        try {
+            BuildScriptStore.archive(buildScriptDir, source, rootDir(), storeDir);
+        } finally {
+            BuildScriptArchive.close(zip);
+        }
+        String checksum = DigestUtils.sha256Hex(Files.readAllBytes(zip.toPath()));
+        // evicted from the cache of build-script archives
+        Files.delete(zip.toPath());
+
+        ManifestEntry sourceEntry = BuildScriptStore.readSource(buildScriptDir);
+        assertNotNull(sourceEntry);
+        assertEquals("0123abcd", sourceEntry.getPath());
+        assertEquals(checksum, sourceEntry.getChecksum());
+        File blob = BuildScriptStore.getBlob(storeDir, checksum);
+        assertTrue(blob.isFile());
+        // not one of the rendered files
+        assertEquals(2, BuildScriptStore.readManifest(buildScriptDir).size());
+
+        BuildScriptStore.release(buildDir, storeDir);
+        assertFalse(blob.exists());
+    }
+
+    @Test
+    public void sweepDropsBuildsRemovedFromTheDisk() throws IOException {
+        File firstBuild = buildDir("1");
+        File secondBuild = buildDir("2");
+        BuildScriptStore.archive(buildScriptDir(firstBuild, DEPLOYMENT, "first"), null, rootDir(), storeDir);
+        BuildScriptStore.archive(buildScriptDir(secondBuild, DEPLOYMENT, "second"), null, rootDir(), storeDir);
+        // deleted with its job, RunListener#onDeleted never ran
+        deleteRecursively(firstBuild);
+
+        BuildScriptStore.sweep(rootDir(), storeDir, 0);
+
+        assertFalse(blob("first").exists());
+        assertFalse(refsDir("first").exists());
+        assertTrue(blob(DEPLOYMENT).isFile());
+        assertEquals(1, references(DEPLOYMENT).length);
+        assertTrue(blob("second").isFile());
+    }
+
+    @Test
+    public void sweepKeepsRecentOrphans() throws IOException {
+        File buildDir = buildDir("1");
+        BuildScriptStore.archive(buildScriptDir(buildDir, DEPLOYMENT, "envVars"), null, rootDir(), storeDir);
+        deleteRecursively(buildDir);
+
+        BuildScriptStore.sweep(rootDir(), storeDir, TimeUnit.HOURS.toMillis(1));
+
+        assertTrue(blob(DEPLOYMENT).isFile());
+        assertEquals(1, references(DEPLOYMENT).length);
+    }
+
+    @Test
+    public void sweepDropsBlobsWithoutReferences() throws IOException {
+        File leaked = blob(DEPLOYMENT);
+        write(leaked, DEPLOYMENT);
+
+        BuildScriptStore.sweep(rootDir(), storeDir, 0);
+
+        assertFalse(leaked.exists());
+    }
+
+    @Test
+    public void movedBuildsKeepTheirReferences() throws IOException {
+        File buildDir = buildDir("1");
+        BuildScriptStore.archive(buildScriptDir(buildDir, DEPLOYMENT, "envVars"), null, rootDir(), storeDir);
+        File movedBuildsDir = new File(rootDir(), "renamed/builds");
+        Files.createDirectories(movedBuildsDir.getParentFile().toPath());
+        Files.move(buildDir.getParentFile().toPath(), movedBuildsDir.toPath());
+
+        BuildScriptStore.relocate(movedBuildsDir, rootDir(), storeDir);
+        BuildScriptStore.sweep(rootDir(), storeDir, 0);
+
+        assertTrue(blob(DEPLOYMENT).isFile());
+        assertEquals(1, references(DEPLOYMENT).length);
+        BuildScriptStore.release(new File(movedBuildsDir, "1"), storeDir);
+        assertFalse(blob(DEPLOYMENT).exists());
+    }
+
+    private File rootDir() {
+        return temporaryFolder.getRoot();
+    }
+
+    private static void deleteRecursively(File dir) throws IOException {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.delete(dir.toPath());
+    }
+
+    private File zip(String name, String entry, String content) throws IOException {
+        File zip = new File(temporaryFolder.getRoot(), name);
+        try (ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip.toPath()))) {
+            output.putNextEntry(new ZipEntry(entry));
+            output.write(content.getBytes(StandardCharsets.UTF_8));
+            output.closeEntry();
+        }
+        return zip;
+    }
+
+    private File buildDir(String number) throws IOException {
+        File buildDir = new File(temporaryFolder.getRoot(), "builds/" + number);
+        Files.createDirectories(buildDir.toPath());
+        return buildDir;
+    }
+
+    private File buildScriptDir(File buildDir, String deployment, String envVars) throws IOException {
+        return buildScriptDir(buildDir, "build-script", deployment, envVars);
+    }
+
+    private File buildScriptDir(File buildDir, String name, String deployment, String envVars) throws IOException {
+        File buildScriptDir = new File(buildDir, name);
+        write(new File(buildScriptDir, "deploy/deployment.yaml"), deployment);
+        write(new File(buildScriptDir, "envVars"), envVars);
+        return buildScriptDir;
+    }
+
+    private File blob(String content) {
+        return BuildScriptStore.getBlob(storeDir, DigestUtils.sha256Hex(content));
+    }
+
+    private File refsDir(String content) {
+        File blob = blob(content);
+        return new File(blob.getParentFile(), blob.getName() + ".refs");
+    }
+
+    private String[] references(String content) {
+        String[] references = refsDir(content).list();
+        assertNotNull(references);
+        return references;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,141 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.Logger;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.StreamBuildListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class ShellSessionTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final ByteArrayOutputStream console = new ByteArrayOutputStream();
+
+    private ShellSession session;
+
+    @Before
+    public void setUp() throws IOException {
+        StreamBuildListener listener = new StreamBuildListener(console, StandardCharsets.UTF_8);
+        BuilderContext context = new BuilderContext.Builder()
+                .launcher(new Launcher.LocalLauncher(listener))
+                .listener(listener)
+                .logger(Logger.of(listener.getLogger()))
+                .workspace(new FilePath(temporaryFolder.getRoot()))
+                .environment(new EnvVars())
+                .envVars(new EnvVars())
+                .build();
+        session = ShellSession.start(context);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        session.close();
+    }
+
+    @Test
+    public void reportsTheExitCodeOfEveryCommand() throws Exception {
+        ShellSession.Result result = session.run(Arrays.asList("true", "exit 3"), new EnvVars());
+
+        assertEquals(0, result.getExitCode(0));
+        assertEquals(3, result.getExitCode(1));
+        assertTrue(result.getFinishedAt(0) > 0);
+    }
+
+    @Test
+    public void skipsTheCommandsAfterAFailedOne() throws Exception {
+        ShellSession.Result result = session.run(Arrays.asList("false", "echo skipped"), new EnvVars());
+
+        assertEquals(1, result.getExitCode(0));
+        assertEquals(-1, result.getExitCode(1));
+        assertFalse(output().contains("+ echo skipped"));
+    }
+
+    @Test
+    public void failsOnTheFirstFailedLineOfACommand() throws Exception {
+        // every command runs with -e
+        ShellSession.Result result = session.run(Collections.singletonList("false\necho reached"), new EnvVars());
+
+        assertEquals(1, result.getExitCode(0));
+        assertFalse(output().contains("reached\n"));
+    }
+
+    @Test
+    public void parsesTheFrameAfterOutputWithoutNewline() throws Exception {
+        ShellSession.Result result = session.run(Arrays.asList("printf partial", "echo next"), new EnvVars());
+
+        assertEquals(0, result.getExitCode(0));
+        assertEquals(0, result.getExitCode(1));
+        String output = output();
+        assertTrue(output, output.contains("partial\n"));
+        assertTrue(output, output.contains("next\n"));
+    }
+
+    @Test
+    public void keepsTheFramesOutOfTheConsole() throws Exception {
+        session.run(Arrays.asList("echo first", "echo second"), new EnvVars());
+
+        for (String line : output().split("\n")) {
+            assertFalse(line, line.matches(".*[0-9a-f]{32} (\\d+ \\d+|end).*"));
+        }
+    }
+
+    @Test
+    public void commandsDoNotAffectEachOther() throws Exception {
+        session.run(Collections.singletonList("cd /"), new EnvVars());
+        ShellSession.Result result = session.run(Collections.singletonList("test \"$(pwd)\" = \"" + temporaryFolder.getRoot().getCanonicalPath() + "\""), new EnvVars());
+
+        assertEquals(0, result.getExitCode(0));
+    }
+
+    @Test
+    public void commandsCanNotConsumeTheProtocol() throws Exception {
+        ShellSession.Result result = session.run(Arrays.asList("cat", "echo after"), new EnvVars());
+
+        assertEquals(0, result.getExitCode(0));
+        assertEquals(0, result.getExitCode(1));
+    }
+
+    @Test
+    public void exportsAndUnsetsTheEnvironment() throws Exception {
+        EnvVars environment = new EnvVars();
+        environment.put("QUOTED", "it's \"quoted\" $HOME");
+        environment.put("git.branch", "main");
+        ShellSession.Result result = session.run(Collections.singletonList("test \"$QUOTED\" = 'it'\"'\"'s \"quoted\" $HOME'"), environment);
+        assertEquals(0, result.getExitCode(0));
+
+        result = session.run(Collections.singletonList("test -z \"${QUOTED+set}\""), new EnvVars());
+        assertEquals(0, result.getExitCode(0));
+    }
+
+    @Test
+    public void keepsRunningAcrossBatches() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, session.run(Collections.singletonList("echo batch " + i), new EnvVars()).getExitCode(0));
+        }
+        assertTrue(session.isAlive());
+    }
+
+    private String output() throws IOException {
+        return console.toString(StandardCharsets.UTF_8.name());
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The namespace of the deploy target is written into every document of the manifest that declares none
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class DeployToK8sConfigTest {
+
+    @Test
+    public void documentWithoutNamespaceGetsTheTargetOne() {
+        String manifest = String.join("\n",
+                "apiVersion: apps/v1",
+                "kind: Deployment",
+                "metadata:",
+                "  name: web",
+                "spec:",
+                "  replicas: 1",
+                "");
+
+        assertEquals(String.join("\n",
+                "apiVersion: apps/v1",
+                "kind: Deployment",
+                "metadata:",
+                "  namespace: prod",
+                "  name: web",
+                "spec:",
+                "  replicas: 1",
+                ""), DeployToK8sConfig.setDefaultNamespace(manifest, "prod"));
+    }
+
+    @Test
+    public void declaredNamespaceIsKept() {
+        String manifest = String.join("\n",
+                "kind: Service",
+                "metadata:",
+                "    # the service lives with the gateway",
+                "    name: web",
+                "    namespace: gateway",
+                "");
+
+        assertEquals(manifest, DeployToK8sConfig.setDefaultNamespace(manifest, "prod"));
+    }
+
+    @Test
+    public void nestedNamespaceKeysDoNotCount() {
+        String manifest = String.join("\n",
+                "kind: Deployment",
+                "metadata:",
+                "  name: web",
+                "  labels:",
+                "    namespace: team",
+                "spec:",
+                "  template:",
+                "    metadata:",
+                "      namespace: ignored",
+                "");
+
+        String rendered = DeployToK8sConfig.setDefaultNamespace(manifest, "prod");
+
+        assertTrue(rendered, rendered.startsWith("kind: Deployment\nmetadata:\n  namespace: prod\n  name: web\n"));
+        assertTrue(rendered, rendered.contains("    namespace: team\n"));
+    }
+
+    @Test
+    public void everyDocumentIsDecidedOnItsOwn() {
+        String manifest = String.join("\n",
+                "kind: Deployment",
+                "metadata:",
+                "  name: web",
+                "---",
+                "kind: Service",
+                "metadata:",
+                "  name: web",
+                "  namespace: gateway",
+                "---",
+                "kind: ConfigMap",
+                "metadata:",
+                "  name: web-config",
+                "");
+
+        assertEquals(String.join("\n",
+                "kind: Deployment",
+                "metadata:",
+                "  namespace: prod",
+                "  name: web",
+                "---",
+                "kind: Service",
+                "metadata:",
+                "  name: web",
+                "  namespace: gateway",
+                "---",
+                "kind: ConfigMap",
+                "metadata:",
+                "  namespace: prod",
+                "  name: web-config",
+                ""), DeployToK8sConfig.setDefaultNamespace(manifest, "prod"));
+    }
+
+    @Test
+    public void documentWithoutMetadataIsLeftAsItIs() {
+        String manifest = "# nothing but a comment\n---\nkind: List\nitems: []\n";
+
+        assertEquals(manifest, DeployToK8sConfig.setDefaultNamespace(manifest, "prod"));
+    }
+
+}
@@ -0,0 +1,162 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuildScriptArchive;
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
+import com.schbrain.ci.jenkins.plugins.integration.builder.FileManager;
+import com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants;
+import com.schbrain.ci.jenkins.plugins.integration.builder.env.EnvVarsStore;
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.Logger;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import hudson.model.StreamBuildListener;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * A config is shared by all builds of the job, concurrent builds must only ever see their own context
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class SharedBuildConfigTest {
+
+    private static final String MARK = "BUILD_MARK";
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void mavenConfigRunsEveryBuildInItsOwnContext() throws Exception {
+        // the sleep keeps both builds running at the same time
+        MavenConfig config = new MavenConfig("sleep 1 && printf '%s' \"$" + MARK + "\" > mark.txt", null, false, false);
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        BuilderContext first = newContext(jenkins.buildAndAssertSuccess(project), "first");
+        BuilderContext second = newContext(jenkins.buildAndAssertSuccess(project), "second");
+
+        assertEquals(Collections.emptyList(), runConcurrently(config, first, second));
+
+        for (BuilderContext context : new BuilderContext[]{first, second}) {
+            String mark = context.getEnvVars().get(MARK);
+            assertEquals(mark, context.getWorkspace().child("mark.txt").readToString());
+            Map<String, String> saved = EnvVarsStore.read(FileManager.getEnvVarsFile(context.getBuildScriptDir()));
+            assertEquals(mark, saved.get(MARK));
+        }
+    }
+
+    @Test
+    public void dockerConfigRendersEveryBuildInItsOwnBuildScriptDir() throws Exception {
+        DockerConfig config = new DockerConfig(true, null, false, "-Xmx512m", null);
+        FreeStyleProject project = jenkins.createFreeStyleProject();
+        BuilderContext first = newContext(jenkins.buildAndAssertSuccess(project), "first");
+        BuilderContext second = newContext(jenkins.buildAndAssertSuccess(project), "second");
+        File archive = buildScriptArchive("ENV APP=$" + DockerConstants.APP_NAME + "\n");
+        BuildScriptArchive source = BuildScriptArchive.open(archive);
+        try {
+            first.setBuildScriptSource(source);
+            second.setBuildScriptSource(source);
+
+            // no registry, the build stops right after the Dockerfile is rendered, the image build itself needs docker
+            List<Throwable> failures = runConcurrently(config, first, second);
+            assertEquals(2, failures.size());
+            for (Throwable failure : failures) {
+                assertTrue(String.valueOf(failure), failure instanceof IllegalArgumentException);
+            }
+        } finally {
+            BuildScriptArchive.close(archive);
+        }
+
+        for (BuilderContext context : new BuilderContext[]{first, second}) {
+            File dockerfile = new File(context.getBuildScriptDir(), DockerConstants.DOCKERFILE_NAME);
+            assertEquals("ENV APP=" + context.getEnvVars().get(DockerConstants.APP_NAME) + "\n", read(dockerfile));
+            assertEquals("-Xmx512m", context.getEnvVars().get(DockerConstants.JAVA_OPTS));
+        }
+    }
+
+    /**
+     * @return the failures of the builds, empty if both succeeded
+     */
+    private static List<Throwable> runConcurrently(BuildConfig<?> config, BuilderContext... contexts) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(contexts.length);
+        CyclicBarrier start = new CyclicBarrier(contexts.length);
+        try {
+            Future<?>[] futures = new Future<?>[contexts.length];
+            for (int i = 0; i < contexts.length; i++) {
+                BuilderContext context = contexts[i];
+                futures[i] = executor.submit(() -> {
+                    start.await();
+                    try {
+                        config.build(context);
+                    } finally {
+                        context.closeSession();
+                    }
+                    return null;
+                });
+            }
+            List<Throwable> failures = new ArrayList<>();
+            for (Future<?> future : futures) {
+                try {
+                    future.get(1, TimeUnit.MINUTES);
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                }
+            }
+            return failures;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private BuilderContext newContext(Run<?, ?> run, String name) throws IOException {
+        StreamBuildListener listener = new StreamBuildListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+        EnvVars envVars = new EnvVars(MARK, name, DockerConstants.APP_NAME, name + "-service");
+        return new BuilderContext.Builder()
+                .build(run)
+                .launcher(new Launcher.LocalLauncher(listener))
+                .listener(listener)
+                .logger(Logger.of(listener.getLogger()))
+                .workspace(new FilePath(temporaryFolder.newFolder(name + "-workspace")))
+                .environment(new EnvVars())
+                .envVars(envVars)
+                .buildScriptDir(temporaryFolder.newFolder(name + "-build-script"))
+                .stagingDir(new FilePath(temporaryFolder.newFolder(name + "-staging")))
+                .build();
+    }
+
+    private File buildScriptArchive(String dockerfile) throws IOException {
+        File zip = new File(temporaryFolder.getRoot(), "0123456789abcdef.zip");
+        try (ZipOutputStream output = new ZipOutputStream(Files.newOutputStream(zip.toPath()))) {
+            output.putNextEntry(new ZipEntry(DockerConstants.DOCKERFILE_NAME));
+            output.write(dockerfile.getBytes(StandardCharsets.UTF_8));
+            output.closeEntry();
+        }
+        return zip;
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+}
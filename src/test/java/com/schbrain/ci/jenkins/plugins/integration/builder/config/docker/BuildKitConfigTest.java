@@ -0,0 +1,70 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.docker;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.BuildKitConfig.CacheStatistics;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cache hits are counted from the plain progress output of buildx
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class BuildKitConfigTest {
+
+    private static final String PROGRESS = String.join("\n",
+            "#1 [internal] load build definition from Dockerfile",
+            "#1 transferring dockerfile: 210B done",
+            "#1 DONE 0.0s",
+            "#2 [internal] load metadata for docker.io/library/openjdk:8-jre",
+            "#2 CACHED",
+            "#5 [build 1/3] FROM docker.io/library/maven:3-jdk-8",
+            "#5 CACHED",
+            "#6 [build 2/3] RUN mvn package",
+            "#6 CACHED",
+            "#7 [stage-1 1/2] FROM docker.io/library/openjdk:8-jre",
+            "#7 CACHED",
+            "#8 [stage-1 2/2] COPY --from=build /build/app.jar /app.jar",
+            "#8 0.512 copying",
+            "#8 DONE 0.6s",
+            "#9 exporting to image",
+            "#9 DONE 0.1s",
+            "");
+
+    @Test
+    public void countsTheCachedSteps() throws IOException {
+        CacheStatistics statistics = new CacheStatistics();
+        statistics.write(PROGRESS.getBytes(StandardCharsets.UTF_8));
+
+        // internal steps and the export are not steps of the Dockerfile
+        assertEquals(4, statistics.getSteps());
+        assertEquals(3, statistics.getCached());
+        assertEquals(75, statistics.getHitRate());
+    }
+
+    @Test
+    public void linesSplitAcrossWritesAreCountedOnce() throws IOException {
+        CacheStatistics statistics = new CacheStatistics();
+        byte[] progress = PROGRESS.getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < progress.length; offset += 7) {
+            statistics.write(progress, offset, Math.min(7, progress.length - offset));
+        }
+
+        assertEquals(4, statistics.getSteps());
+        assertEquals(3, statistics.getCached());
+    }
+
+    @Test
+    public void noStepsIsNoHitRate() throws IOException {
+        CacheStatistics statistics = new CacheStatistics();
+        statistics.write("#1 [internal] load .dockerignore\n#1 DONE 0.0s\n".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(0, statistics.getSteps());
+        assertEquals(0, statistics.getHitRate());
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.docker;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.ImageFingerprint.DockerIgnore;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.ImageFingerprint.HashSourcesCallable;
+import com.schbrain.ci.jenkins.plugins.integration.builder.config.docker.ImageFingerprint.Instructions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * The inputs of an image are taken from the Dockerfile, sources are hashed as the daemon would receive them
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class ImageFingerprintTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void stagesAreNotBaseImages() {
+        Instructions instructions = Instructions.parse(String.join("\n",
+                "FROM maven:3-jdk-8 AS build",
+                "COPY pom.xml src/ /build/",
+                "FROM build AS test",
+                "FROM scratch",
+                "FROM openjdk:8-jre",
+                "COPY --from=build /build/target/app.jar /app.jar"));
+
+        assertEquals(Arrays.asList("maven:3-jdk-8", "openjdk:8-jre"), instructions.baseImages);
+        assertEquals(Arrays.asList("pom.xml", "src/"), instructions.sources);
+    }
+
+    @Test
+    public void copyFromAnotherStageIsNotASource() {
+        Instructions instructions = Instructions.parse(String.join("\n",
+                "FROM openjdk:8-jre",
+                "COPY --from=build --chown=app /build/app.jar /app.jar",
+                "COPY --chown=app config/ /config/"));
+
+        assertEquals(Collections.singletonList("config/"), instructions.sources);
+    }
+
+    @Test
+    public void execFormAndContinuationsAreParsed() {
+        Instructions instructions = Instructions.parse(String.join("\n",
+                "FROM openjdk:8-jre",
+                "# COPY commented.txt /",
+                "COPY [\"target/my app.jar\", \"lib/\", \"/app/\"]",
+                "COPY a.txt \\",
+                "     b.txt /"));
+
+        assertEquals(Arrays.asList("target/my app.jar", "lib/", "a.txt", "b.txt"), instructions.sources);
+    }
+
+    @Test
+    public void remoteSourcesAreToldApart() {
+        Instructions instructions = Instructions.parse(String.join("\n",
+                "FROM openjdk:8-jre",
+                "ADD https://example.com/agent.jar /agent.jar",
+                "ADD git@github.com:example/config.git /config",
+                "ADD local.tar.gz /"));
+
+        assertEquals(Arrays.asList("https://example.com/agent.jar", "git@github.com:example/config.git"), instructions.remoteSources);
+        assertEquals(Collections.singletonList("local.tar.gz"), instructions.sources);
+    }
+
+    @Test
+    public void ignoreMatchesLikeDocker() {
+        DockerIgnore dockerIgnore = new DockerIgnore(Arrays.asList(
+                "# comment",
+                "/logs",
+                "*.tmp",
+                "**/*.bak",
+                "target/",
+                "!target/app.jar"));
+
+        assertTrue(dockerIgnore.isIgnored("logs/app.log"));
+        assertTrue(dockerIgnore.isIgnored("build.tmp"));
+        assertFalse("* stays within one segment", dockerIgnore.isIgnored("src/build.tmp"));
+        assertTrue(dockerIgnore.isIgnored("old.bak"));
+        assertTrue(dockerIgnore.isIgnored("src/main/old.bak"));
+        assertTrue(dockerIgnore.isIgnored("target/classes/App.class"));
+        assertFalse(dockerIgnore.isIgnored("target/app.jar"));
+        assertFalse(dockerIgnore.isIgnored("# comment"));
+        assertFalse(dockerIgnore.isIgnored("src/logs/app.log"));
+    }
+
+    @Test
+    public void lastMatchingPatternWins() {
+        DockerIgnore dockerIgnore = new DockerIgnore(Arrays.asList("*.md", "!README.md", "README*"));
+
+        assertTrue(dockerIgnore.isIgnored("CHANGES.md"));
+        assertTrue(dockerIgnore.isIgnored("README.md"));
+    }
+
+    @Test
+    public void ignoredFilesDoNotChangeTheHash() throws IOException {
+        File root = temporaryFolder.getRoot();
+        write(root, ".dockerignore", "target/*.log\n");
+        write(root, "target/app.jar", "app");
+        write(root, "target/build.log", "first");
+        String hash = hash(root, "target/");
+
+        write(root, "target/build.log", "second");
+        assertEquals(hash, hash(root, "target/"));
+
+        write(root, "target/app.jar", "changed");
+        assertNotEquals(hash, hash(root, "target/"));
+    }
+
+    private static String hash(File root, String source) throws IOException {
+        return new HashSourcesCallable(Collections.singletonList(source)).invoke(root, null);
+    }
+
+    private static void write(File root, String path, String content) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
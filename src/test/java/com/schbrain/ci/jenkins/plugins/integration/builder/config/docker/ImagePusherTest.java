@@ -0,0 +1,64 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.docker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The digest of a pushed image is taken from the output of docker push
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class ImagePusherTest {
+
+    private static final String FIRST_DIGEST = "sha256:" + repeat('a');
+
+    private static final String SECOND_DIGEST = "sha256:" + repeat('b');
+
+    @Test
+    public void digestIsTakenFromTheMultiLineOutput() {
+        String output = String.join("\n",
+                "The push refers to repository [registry.example.com/web]",
+                "5f70bf18a086: Preparing",
+                "9c1b6dd6c1e6: Preparing",
+                "5f70bf18a086: Layer already exists",
+                "9c1b6dd6c1e6: Pushed",
+                "1.0.0: digest: " + FIRST_DIGEST + " size: 1570",
+                "");
+
+        assertEquals(FIRST_DIGEST, ImagePusher.parseDigest(output));
+    }
+
+    @Test
+    public void lastDigestWins() {
+        String output = String.join("\n",
+                "1.0.0: digest: " + FIRST_DIGEST + " size: 1570",
+                "5f70bf18a086: Layer already exists",
+                "latest: digest: " + SECOND_DIGEST + " size: 1570",
+                "");
+
+        assertEquals(SECOND_DIGEST, ImagePusher.parseDigest(output));
+    }
+
+    @Test
+    public void outputWithoutDigestHasNone() {
+        String output = String.join("\n",
+                "The push refers to repository [registry.example.com/web]",
+                "5f70bf18a086: Preparing",
+                "denied: requested access to the resource is denied",
+                "");
+
+        assertNull(ImagePusher.parseDigest(output));
+        assertNull("a short digest is not a digest", ImagePusher.parseDigest("1.0.0: digest: sha256:abc size: 1570"));
+    }
+
+    private static String repeat(char hex) {
+        StringBuilder builder = new StringBuilder(64);
+        for (int i = 0; i < 64; i++) {
+            builder.append(hex);
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.config.maven;
+
+import hudson.FilePath;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class ReactorModulesTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private ReactorModules reactor;
+
+    /**
+     * root aggregates api, api-client and service, service aggregates service/core and service/web,
+     * all modules inherit from the root pom, service/web inherits from the shared parent in build/parent
+     */
+    @Before
+    public void setUp() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        pom(root, null, "api", "api-client", "service", "build/parent");
+        pom(root.resolve("api"), null);
+        pom(root.resolve("api-client"), null);
+        pom(root.resolve("service"), null, "core", "web");
+        pom(root.resolve("service/core"), null);
+        pom(root.resolve("service/web"), "../../build/parent/pom.xml");
+        pom(root.resolve("build/parent"), null);
+        reactor = ReactorModules.parse(new FilePath(root.toFile()));
+        assertNotNull(reactor);
+    }
+
+    @Test
+    public void mapsChangedFilesToTheirModules() {
+        Set<String> affected = reactor.affectedModules(Arrays.asList(
+                "api/src/main/java/com/example/Api.java",
+                "api-client/src/main/java/com/example/Client.java"));
+
+        assertEquals(new TreeSet<>(Arrays.asList("api", "api-client")), affected);
+    }
+
+    @Test
+    public void mapsChangedFilesToTheInnermostModule() {
+        Set<String> affected = reactor.affectedModules(Arrays.asList(
+                "service/core/src/main/java/com/example/Core.java",
+                "service/web/src/main/resources/application.yaml"));
+
+        assertEquals(new TreeSet<>(Arrays.asList("service/core", "service/web")), affected);
+    }
+
+    @Test
+    public void pomOfALeafModuleOnlyAffectsTheModule() {
+        assertEquals(Collections.singleton("api"), reactor.affectedModules(Collections.singletonList("api/pom.xml")));
+    }
+
+    @Test
+    public void rootPomRequiresFullBuild() {
+        assertNull(reactor.affectedModules(Arrays.asList("api/src/Api.java", "pom.xml")));
+    }
+
+    @Test
+    public void aggregatorPomRequiresFullBuild() {
+        assertNull(reactor.affectedModules(Collections.singletonList("service/pom.xml")));
+    }
+
+    @Test
+    public void sharedParentPomRequiresFullBuild() {
+        assertNull(reactor.affectedModules(Collections.singletonList("build/parent/pom.xml")));
+    }
+
+    @Test
+    public void pathOutsideOfModulesRequiresFullBuild() {
+        assertNull(reactor.affectedModules(Arrays.asList("api/src/Api.java", "Jenkinsfile")));
+        assertNull(reactor.affectedModules(Collections.singletonList("docs/README.md")));
+    }
+
+    @Test
+    public void windowsSeparatorsAreNormalized() {
+        assertEquals(Collections.singleton("service/core"), reactor.affectedModules(Collections.singletonList("service\\core\\src\\Core.java")));
+    }
+
+    @Test
+    public void emptyChangeSetRequiresFullBuild() {
+        assertNull(reactor.affectedModules(Collections.emptyList()));
+    }
+
+    @Test
+    public void workspaceWithoutPomIsNotAReactor() throws Exception {
+        assertNull(ReactorModules.parse(new FilePath(temporaryFolder.newFolder("empty"))));
+    }
+
+    private static void pom(Path dir, String parentPath, String... modules) throws IOException {
+        StringBuilder pom = new StringBuilder("<project>\n");
+        if (parentPath != null) {
+            pom.append("  <parent>\n    <relativePath>").append(parentPath).append("</relativePath>\n  </parent>\n");
+        }
+        if (modules.length > 0) {
+            pom.append("  <modules>\n");
+            for (String module : modules) {
+                pom.append("    <module>").append(module).append("</module>\n");
+            }
+            pom.append("  </modules>\n");
+        }
+        pom.append("</project>\n");
+        Files.createDirectories(dir);
+        Files.write(dir.resolve("pom.xml"), pom.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+}
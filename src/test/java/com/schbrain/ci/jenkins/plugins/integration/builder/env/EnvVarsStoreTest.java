@@ -0,0 +1,117 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.env;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class EnvVarsStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void appendsOnlyChangedKeys() throws IOException {
+        File journal = new File(temporaryFolder.getRoot(), "envVars");
+        EnvVarsStore store = new EnvVarsStore(journal);
+        Map<String, String> variables = new HashMap<>();
+        variables.put("APP_NAME", "order-service");
+        variables.put("VERSION", "1.0.0");
+        store.save(variables);
+
+        variables.put("VERSION", "1.0.1");
+        store.save(variables);
+        // nothing changed, nothing appended
+        store.save(variables);
+
+        List<String> lines = readLines(journal);
+        assertEquals(3, lines.size());
+        assertEquals("VERSION=1.0.1", lines.get(2));
+        assertEquals(variables, EnvVarsStore.read(journal));
+    }
+
+    @Test
+    public void recordsRemovals() throws IOException {
+        File journal = new File(temporaryFolder.getRoot(), "envVars");
+        EnvVarsStore store = new EnvVarsStore(journal);
+        Map<String, String> variables = new HashMap<>();
+        variables.put("IMAGE", "registry.example.com/order-service:1.0.0-1");
+        variables.put("PORT", "8080");
+        store.save(variables);
+
+        variables.remove("PORT");
+        store.save(variables);
+
+        assertEquals("PORT", readLines(journal).get(2));
+        assertEquals(variables, EnvVarsStore.read(journal));
+    }
+
+    @Test
+    public void escapesLineBreaksAndKeepsDelimitersOfValues() throws IOException {
+        File journal = new File(temporaryFolder.getRoot(), "envVars");
+        EnvVarsStore store = new EnvVarsStore(journal);
+        Map<String, String> variables = new HashMap<>();
+        variables.put("JAVA_OPTS", "-Dkey=value -Dother=1");
+        variables.put("DESCRIPTION", "first line\nsecond line\\");
+        store.save(variables);
+
+        assertEquals(2, readLines(journal).size());
+        assertEquals(variables, EnvVarsStore.read(journal));
+    }
+
+    @Test
+    public void compactKeepsOneLinePerKey() throws IOException {
+        File journal = new File(temporaryFolder.getRoot(), "envVars");
+        EnvVarsStore store = new EnvVarsStore(journal);
+        Map<String, String> variables = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            variables.put("BUILD_STEP", Integer.toString(i));
+            variables.put("STEP_" + i, "done");
+            store.save(variables);
+        }
+        variables.remove("STEP_0");
+        store.save(variables);
+
+        store.compact();
+
+        assertEquals(variables.size(), readLines(journal).size());
+        assertEquals(variables, EnvVarsStore.read(journal));
+    }
+
+    @Test
+    public void resumesFromExistingJournal() throws IOException {
+        File journal = new File(temporaryFolder.getRoot(), "envVars");
+        Map<String, String> variables = new HashMap<>();
+        variables.put("APP_NAME", "order-service");
+        new EnvVarsStore(journal).save(variables);
+
+        // a new store knows what is persisted, an unchanged save appends nothing
+        new EnvVarsStore(journal).save(variables);
+
+        assertEquals(1, readLines(journal).size());
+    }
+
+    @Test
+    public void readOfMissingJournalIsEmpty() throws IOException {
+        assertTrue(EnvVarsStore.read(new File(temporaryFolder.getRoot(), "missing")).isEmpty());
+    }
+
+    private static List<String> readLines(File journal) throws IOException {
+        return Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+    }
+
+}
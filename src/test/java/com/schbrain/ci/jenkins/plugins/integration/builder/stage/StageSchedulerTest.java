@@ -0,0 +1,156 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.stage;
+
+import com.schbrain.ci.jenkins.plugins.integration.builder.BuilderContext;
+import com.schbrain.ci.jenkins.plugins.integration.builder.util.Logger;
+import hudson.EnvVars;
+import hudson.model.StreamBuildListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class StageSchedulerTest {
+
+    private final ByteArrayOutputStream console = new ByteArrayOutputStream();
+
+    private BuilderContext context;
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        StreamBuildListener listener = new StreamBuildListener(console, StandardCharsets.UTF_8);
+        context = new BuilderContext.Builder()
+                .listener(listener)
+                .logger(Logger.of(listener.getLogger()))
+                .environment(new EnvVars())
+                .envVars(new EnvVars())
+                .build();
+        executor = StageScheduler.newExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        StageScheduler.terminate(executor, context);
+    }
+
+    @Test
+    public void startsStageAfterItsDependencies() throws Exception {
+        List<String> finished = Collections.synchronizedList(new ArrayList<>());
+        new StageScheduler(context, executor)
+                .stage("maven", stageContext -> {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                    finished.add("maven");
+                })
+                .stage("build-info", stageContext -> finished.add("build-info"), "maven")
+                .stage("docker-build", stageContext -> finished.add("docker-build"), "build-info")
+                .run();
+
+        assertEquals(Arrays.asList("maven", "build-info", "docker-build"), finished);
+    }
+
+    @Test
+    public void runsIndependentStagesConcurrently() throws Exception {
+        // both stages must be running at the same time to pass the barrier
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        new StageScheduler(context, executor)
+                .stage("maven", stageContext -> barrier.await(10, TimeUnit.SECONDS))
+                .stage("build-script", stageContext -> barrier.await(10, TimeUnit.SECONDS))
+                .run();
+    }
+
+    @Test
+    public void rethrowsTheFailureAndSkipsDependentStages() throws Exception {
+        IllegalStateException failure = new IllegalStateException("maven failed");
+        AtomicBoolean dependentRan = new AtomicBoolean();
+        try {
+            new StageScheduler(context, executor)
+                    .stage("maven", stageContext -> {
+                        throw failure;
+                    })
+                    .stage("build-info", stageContext -> dependentRan.set(true), "maven")
+                    .run();
+            fail("the failure of the stage must be rethrown");
+        } catch (IllegalStateException e) {
+            assertSame(failure, e);
+        }
+        assertFalse(dependentRan.get());
+    }
+
+    @Test
+    public void waitsForCancelledStagesBeforeRethrowing() throws Exception {
+        AtomicBoolean cancelledStageStopped = new AtomicBoolean();
+        CyclicBarrier started = new CyclicBarrier(2);
+        try {
+            new StageScheduler(context, executor)
+                    .stage("build-script", stageContext -> {
+                        started.await(10, TimeUnit.SECONDS);
+                        try {
+                            TimeUnit.MINUTES.sleep(1);
+                        } finally {
+                            // cleanup of an interrupted stage takes a while
+                            TimeUnit.MILLISECONDS.sleep(200);
+                            cancelledStageStopped.set(true);
+                        }
+                    })
+                    .stage("maven", stageContext -> {
+                        started.await(10, TimeUnit.SECONDS);
+                        throw new IllegalStateException("maven failed");
+                    })
+                    .run();
+            fail("the failure of the stage must be rethrown");
+        } catch (IllegalStateException e) {
+            assertEquals("maven failed", e.getMessage());
+        }
+        assertTrue(cancelledStageStopped.get());
+    }
+
+    @Test
+    public void keepsConsoleOutputInDeclaredOrder() throws Exception {
+        new StageScheduler(context, executor)
+                .stage("slow", stageContext -> {
+                    TimeUnit.MILLISECONDS.sleep(200);
+                    stageContext.log("slow finished");
+                })
+                .stage("fast", stageContext -> stageContext.log("fast finished"))
+                .run();
+
+        String output = console.toString(StandardCharsets.UTF_8.name());
+        int slow = output.indexOf("[slow] ");
+        int fast = output.indexOf("[fast] ");
+        assertTrue(output, slow >= 0 && fast >= 0);
+        assertTrue(output, slow < fast);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUndeclaredDependencies() {
+        new StageScheduler(context, executor).stage("deploy", stageContext -> {
+        }, "docker-push");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDuplicatedStages() {
+        new StageScheduler(context, executor)
+                .stage("maven", stageContext -> {
+                })
+                .stage("maven", stageContext -> {
+                });
+    }
+
+}
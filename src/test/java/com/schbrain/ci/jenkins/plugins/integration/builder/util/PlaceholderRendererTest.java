@@ -0,0 +1,124 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.util;
+
+import hudson.EnvVars;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * The renderer must produce exactly what the template engine produces for every template it accepts
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class PlaceholderRendererTest {
+
+    private static final List<String> SIMPLE_TEMPLATES = Arrays.asList(
+            "",
+            "no references at all",
+            "name: $APP_NAME",
+            "name: ${APP_NAME}",
+            "image: ${IMAGE}\nport: $PORT\n",
+            "${APP_NAME}-${VERSION}",
+            "$APP_NAME-web",
+            "${APP_NAME}web",
+            "$APP_NAME.",
+            "version: $VERSION.\n",
+            "missing: $MISSING and ${MISSING}",
+            "$APP_NAME$PORT$VERSION",
+            "costs 5$ or $ 5",
+            "$1 and $-x",
+            "# yaml comment $APP_NAME\nkey: value # trailing $PORT",
+            "value with a dollar: $DOLLAR_VALUE",
+            "lower case: $app_name",
+            "unicode: 服务 $APP_NAME 端口 ${PORT}\n",
+            "  - name: JAVA_OPTS\n    value: \"$JAVA_OPTS\"\n");
+
+    private static final List<String> ENGINE_TEMPLATES = Arrays.asList(
+            "#if($PORT)x#end",
+            "#set($a = 1)$a",
+            "#{if}($PORT)x#{end}",
+            "## comment",
+            "#* block *#",
+            "\\$APP_NAME",
+            "$!APP_NAME",
+            "$!{APP_NAME}",
+            "$APP_NAME.length()",
+            "$APP_NAME.bytes",
+            "$LIST[0]",
+            "$APP_NAME()",
+            "${APP_NAME",
+            "${APP_NAME.bytes}");
+
+    @Test
+    public void rendersLikeTheEngine() throws IOException {
+        for (String template : SIMPLE_TEMPLATES) {
+            assertRendersLikeTheEngine(template, variables(new HashMap<>()));
+        }
+    }
+
+    @Test
+    public void rendersLikeTheEngineWithEnvVars() throws IOException {
+        for (String template : SIMPLE_TEMPLATES) {
+            assertRendersLikeTheEngine(template, variables(new EnvVars()));
+        }
+    }
+
+    @Test
+    public void resolvesNamesByTheirExactCase() throws IOException {
+        // EnvVars compares its keys case insensitive, templates never did
+        EnvVars variables = new EnvVars("HOME", "/home/jenkins");
+        String template = "$home ${home} $Home $HOME";
+
+        assertRendersLikeTheEngine(template, variables);
+        assertEquals("$home ${home} $Home /home/jenkins", TemplateUtils.resolve(template, variables));
+        assertEquals("$home", TemplateUtils.resolve("#if($home)set#end$home", variables));
+    }
+
+    @Test
+    public void rendersReferencesAcrossTheBufferBoundary() throws IOException {
+        StringBuilder template = new StringBuilder();
+        // shift every line a bit so references end up crossing the 8k buffer at different offsets
+        for (int i = 0; i < 2000; i++) {
+            template.append(i).append(": ${APP_NAME}-$VERSION $MISSING ").append(i % 7 == 0 ? "$" : "").append('\n');
+        }
+        assertRendersLikeTheEngine(template.toString(), variables(new HashMap<>()));
+    }
+
+    @Test
+    public void collectsTheReferences() throws IOException {
+        Set<String> references = PlaceholderRenderer.references(new StringReader("${APP_NAME}:$VERSION $MISSING $APP_NAME $ 5$"));
+
+        assertEquals(new TreeSet<>(Arrays.asList("APP_NAME", "MISSING", "VERSION")), references);
+    }
+
+    @Test
+    public void leavesEverythingElseToTheEngine() throws IOException {
+        for (String template : ENGINE_TEMPLATES) {
+            assertNull(template, PlaceholderRenderer.references(new StringReader(template)));
+        }
+    }
+
+    private static void assertRendersLikeTheEngine(String template, Map<String, String> variables) throws IOException {
+        assertNotNull(template, PlaceholderRenderer.references(new StringReader(template)));
+        StringWriter rendered = new StringWriter();
+        PlaceholderRenderer.render(new StringReader(template), rendered, variables);
+        assertEquals(template, TemplateUtils.resolve(template, variables), rendered.toString());
+    }
+
+    private static Map<String, String> variables(Map<String, String> variables) {
+        variables.put("APP_NAME", "order-service");
+        variables.put("VERSION", "1.0.0");
+        variables.put("PORT", "8080");
+        variables.put("IMAGE", "registry.example.com/backend/order-service:1.0.0-12");
+        variables.put("DOLLAR_VALUE", "$PORT ${VERSION} #if");
+        variables.put("JAVA_OPTS", "-Xms512m -Dkey=value");
+        return variables;
+    }
+
+}
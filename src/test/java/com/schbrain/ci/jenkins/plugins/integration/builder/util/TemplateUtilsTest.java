@@ -0,0 +1,171 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.util;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Rendered outputs are memoized by the template and the values of the variables it references only
+ *
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class TemplateUtilsTest {
+
+    private static final String TEMPLATE_HASH = "0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path renderedDir;
+
+    private Path templateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        renderedDir = temporaryFolder.newFolder("rendered").toPath();
+        templateFile = temporaryFolder.getRoot().toPath().resolve("deployment.yaml");
+    }
+
+    @Test
+    public void keyDependsOnReferencedValuesOnly() {
+        Set<String> references = new TreeSet<>(Arrays.asList("APP_NAME", "PORT"));
+        Map<String, String> variables = variables("APP_NAME", "web", "PORT", "8080", "BUILD_NUMBER", "1");
+        String key = TemplateUtils.getRenderKey(TEMPLATE_HASH, references, variables);
+
+        variables.put("BUILD_NUMBER", "2");
+        assertEquals(key, TemplateUtils.getRenderKey(TEMPLATE_HASH, references, variables));
+
+        variables.put("PORT", "8081");
+        assertNotEquals(key, TemplateUtils.getRenderKey(TEMPLATE_HASH, references, variables));
+        assertNotEquals(key, TemplateUtils.getRenderKey("fedcba9876543210", references, variables("APP_NAME", "web", "PORT", "8080")));
+    }
+
+    @Test
+    public void keyTellsMissingFromEmptyValues() {
+        Set<String> references = Collections.singleton("APP_NAME");
+        String missing = TemplateUtils.getRenderKey(TEMPLATE_HASH, references, variables());
+        String empty = TemplateUtils.getRenderKey(TEMPLATE_HASH, references, variables("APP_NAME", ""));
+        assertNotEquals(missing, empty);
+    }
+
+    @Test
+    public void valuesCanNotReadAsOtherReferences() {
+        Set<String> references = new TreeSet<>(Arrays.asList("A", "B"));
+        String first = TemplateUtils.getRenderKey(TEMPLATE_HASH, references, variables("A", "x\nB=y"));
+        String second = TemplateUtils.getRenderKey(TEMPLATE_HASH, references, variables("A", "x", "B", "y\nB="));
+        assertNotEquals(first, second);
+    }
+
+    @Test
+    public void unchangedOutputIsLinkedFromTheMemo() throws IOException {
+        write(templateFile, "name: ${APP_NAME}\nport: $PORT\n");
+        Path first = target("first.yaml");
+        Path second = target("second.yaml");
+
+        TemplateUtils.renderFile(templateFile, first, variables("APP_NAME", "web", "PORT", "8080", "BUILD_NUMBER", "1"), renderedDir);
+        TemplateUtils.renderFile(templateFile, second, variables("APP_NAME", "web", "PORT", "8080", "BUILD_NUMBER", "2"), renderedDir);
+
+        assertEquals("name: web\nport: 8080\n", read(first));
+        assertEquals(read(first), read(second));
+        assertEquals(1, renderedFiles().length);
+    }
+
+    @Test
+    public void changedReferenceIsRenderedAgain() throws IOException {
+        write(templateFile, "port: $PORT\n");
+        Path first = target("first.yaml");
+        Path second = target("second.yaml");
+
+        TemplateUtils.renderFile(templateFile, first, variables("PORT", "8080"), renderedDir);
+        TemplateUtils.renderFile(templateFile, second, variables("PORT", "8081"), renderedDir);
+
+        assertEquals("port: 8080\n", read(first));
+        assertEquals("port: 8081\n", read(second));
+        assertEquals(2, renderedFiles().length);
+    }
+
+    @Test
+    public void engineTemplatesAreMemoizedByTheirReferences() throws IOException {
+        String template = "#if($REPLICAS)replicas: $REPLICAS#end\n";
+        write(templateFile, template);
+        Path first = target("first.yaml");
+        Path second = target("second.yaml");
+
+        TemplateUtils.renderFile(templateFile, first, variables("REPLICAS", "2", "BUILD_NUMBER", "1"), renderedDir);
+        TemplateUtils.renderFile(templateFile, second, variables("REPLICAS", "2", "BUILD_NUMBER", "2"), renderedDir);
+
+        assertEquals(TemplateUtils.resolve(template, variables("REPLICAS", "2")), read(first));
+        assertEquals(read(first), read(second));
+        assertEquals(1, renderedFiles().length);
+    }
+
+    @Test
+    public void evictedMemoIsRenderedAgain() throws IOException {
+        write(templateFile, "port: $PORT\n");
+        Path first = target("first.yaml");
+        TemplateUtils.renderFile(templateFile, first, variables("PORT", "8080"), renderedDir);
+        for (File rendered : renderedFiles()) {
+            Files.delete(rendered.toPath());
+        }
+
+        Path second = target("second.yaml");
+        TemplateUtils.renderFile(templateFile, second, variables("PORT", "8080"), renderedDir);
+
+        assertEquals("port: 8080\n", read(first));
+        assertEquals("port: 8080\n", read(second));
+        assertEquals(1, renderedFiles().length);
+    }
+
+    @Test
+    public void existingTargetIsReplacedNotWrittenInPlace() throws IOException {
+        write(templateFile, "port: $PORT\n");
+        Path first = target("first.yaml");
+        Path second = target("second.yaml");
+        TemplateUtils.renderFile(templateFile, first, variables("PORT", "8080"), renderedDir);
+        TemplateUtils.renderFile(templateFile, second, variables("PORT", "8080"), renderedDir);
+
+        // second shares the memo with first, rendering it again must not change first
+        TemplateUtils.renderFile(templateFile, second, variables("PORT", "9090"), renderedDir);
+
+        assertEquals("port: 8080\n", read(first));
+        assertEquals("port: 9090\n", read(second));
+    }
+
+    private File[] renderedFiles() {
+        File[] files = renderedDir.toFile().listFiles(File::isFile);
+        assertNotNull(files);
+        return files;
+    }
+
+    private Path target(String name) {
+        return temporaryFolder.getRoot().toPath().resolve(name);
+    }
+
+    private static Map<String, String> variables(String... keysAndValues) {
+        Map<String, String> variables = new HashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            variables.put(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return variables;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+}
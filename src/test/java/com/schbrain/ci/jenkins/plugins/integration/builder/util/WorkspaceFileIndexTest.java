@@ -0,0 +1,118 @@
+package com.schbrain.ci.jenkins.plugins.integration.builder.util;
+
+import hudson.FilePath;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants.BUILD_INFO_FILE_NAME;
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.DockerConstants.DOCKERFILE_NAME;
+import static com.schbrain.ci.jenkins.plugins.integration.builder.constants.Constants.GitConstants.GIT_PROPERTIES_FILE;
+import static org.junit.Assert.*;
+
+/**
+ * @author liaozan
+ * @since 2022/5/5
+ */
+public class WorkspaceFileIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void looksUpTheClosestFile() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        write(root.resolve("service/web/Dockerfile"), "FROM scratch");
+        write(root.resolve("service/Dockerfile"), "FROM scratch");
+        write(root.resolve("api/deeper/module/Dockerfile"), "FROM scratch");
+
+        WorkspaceFileIndex index = WorkspaceFileIndex.build(new FilePath(root.toFile()));
+
+        assertEquals(root.resolve("service/Dockerfile").toString(), remoteOf(index.lookup(DOCKERFILE_NAME)));
+    }
+
+    @Test
+    public void matchesTheSameFileAsTheGlobLookup() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        write(root.resolve("a/b/c/Dockerfile"), "FROM scratch");
+        write(root.resolve("bb/Dockerfile"), "FROM scratch");
+        write(root.resolve("z/Dockerfile"), "FROM scratch");
+        FilePath workspace = new FilePath(root.toFile());
+
+        FilePath expected = FileUtils.getTheClosestFile(workspace.list("**/" + DOCKERFILE_NAME));
+        FilePath actual = WorkspaceFileIndex.build(workspace).lookup(DOCKERFILE_NAME);
+
+        assertEquals(remoteOf(expected), remoteOf(actual));
+    }
+
+    @Test
+    public void skipsPrunedDirs() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        write(root.resolve(".git/Dockerfile"), "FROM scratch");
+        write(root.resolve("node_modules/Dockerfile"), "FROM scratch");
+        write(root.resolve("module/Dockerfile"), "FROM scratch");
+
+        WorkspaceFileIndex index = WorkspaceFileIndex.build(new FilePath(root.toFile()));
+
+        assertEquals(root.resolve("module/Dockerfile").toString(), remoteOf(index.lookup(DOCKERFILE_NAME)));
+    }
+
+    @Test
+    public void parsesPropertiesFilesWhileIndexing() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        write(root.resolve("module/target/" + BUILD_INFO_FILE_NAME), "APP_NAME=order-service\nVERSION=1.0.0\n");
+        write(root.resolve(GIT_PROPERTIES_FILE), "git.branch=main\n");
+
+        WorkspaceFileIndex index = WorkspaceFileIndex.build(new FilePath(root.toFile()));
+
+        Map<String, String> buildInfo = index.readProperties(BUILD_INFO_FILE_NAME);
+        assertNotNull(buildInfo);
+        assertEquals("order-service", buildInfo.get("APP_NAME"));
+        assertEquals("1.0.0", buildInfo.get("VERSION"));
+        assertEquals("main", index.readProperties(GIT_PROPERTIES_FILE).get("git.branch"));
+    }
+
+    @Test
+    public void missingFileIsNull() throws Exception {
+        WorkspaceFileIndex index = WorkspaceFileIndex.build(new FilePath(temporaryFolder.getRoot()));
+
+        assertNull(index.lookup(DOCKERFILE_NAME));
+        assertNull(index.readProperties(BUILD_INFO_FILE_NAME));
+        assertTrue(index.isIndexed(DOCKERFILE_NAME));
+        assertFalse(index.isIndexed("deploy.yaml"));
+    }
+
+    @Test
+    public void seesFilesAddedSinceThePreviousWalk() throws Exception {
+        Path root = temporaryFolder.getRoot().toPath();
+        write(root.resolve("module/deeper/Dockerfile"), "FROM scratch");
+        FilePath workspace = new FilePath(root.toFile());
+        assertEquals(root.resolve("module/deeper/Dockerfile").toString(), remoteOf(WorkspaceFileIndex.build(workspace).lookup(DOCKERFILE_NAME)));
+
+        Path module = root.resolve("module");
+        write(module.resolve("Dockerfile"), "FROM scratch");
+        // the listing is reused while the mtime of the dir is unchanged, make the change visible regardless of the mtime granularity
+        Files.setLastModifiedTime(module, FileTime.fromMillis(Files.getLastModifiedTime(module).toMillis() + 10_000));
+
+        assertEquals(module.resolve("Dockerfile").toString(), remoteOf(WorkspaceFileIndex.build(workspace).lookup(DOCKERFILE_NAME)));
+    }
+
+    private static String remoteOf(FilePath filePath) {
+        assertNotNull(filePath);
+        return new File(filePath.getRemote()).getPath();
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}